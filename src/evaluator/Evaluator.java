@@ -11,6 +11,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -302,6 +303,14 @@ class AllRetrievedResults {
     
     String computeAll() {
         StringBuffer buff = new StringBuffer();
+        for (Map.Entry<String, Float> e : computeMetrics().entrySet()) {
+            buff.append(e.getKey()).append(":\t").append(e.getValue()).append("\n");
+        }
+        return buff.toString();
+    }
+    
+    Map<String, Float> computeMetrics() {
+        Map<String, Float> metrics = new LinkedHashMap<>();
         float map = 0f;
         float gm_ap = 0f;
         float avgRecall = 0f;
@@ -325,16 +334,16 @@ class AllRetrievedResults {
             }
         }
         
-        buff.append("recall:\t").append(avgRecall/(float)allRelInfo.getTotalNumRel()).append("\n");
-        buff.append("map:\t").append(map/numQueries).append("\n");
-        buff.append("gmap:\t").append((float)Math.exp(gm_ap/numQueries)).append("\n");
-        buff.append("P@5:\t").append(pAt5/numQueries).append("\n");
+        metrics.put("recall", avgRecall/(float)allRelInfo.getTotalNumRel());
+        metrics.put("map", map/numQueries);
+        metrics.put("gmap", (float)Math.exp(gm_ap/numQueries));
+        metrics.put("P@5", pAt5/numQueries);
         if (Evaluator.graded) {
-            buff.append("nDCG:\t").append(ndcg/numQueries).append("\n");
-            buff.append("nDCG@5:\t").append(ndcg_5/numQueries).append("\n");
+            metrics.put("nDCG", ndcg/numQueries);
+            metrics.put("nDCG@5", ndcg_5/numQueries);
         }
         
-        return buff.toString();
+        return metrics;
     }    
 }
 
@@ -377,6 +386,11 @@ public class Evaluator {
         return retRcds.computeAll();
     }
     
+    // metric name -> value, in the order printed by computeAll()
+    public Map<String, Float> computeMetrics() {
+        return retRcds.computeMetrics();
+    }
+    
     @Override
     public String toString() {
         StringBuffer buff = new StringBuffer();
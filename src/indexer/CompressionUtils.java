@@ -33,10 +33,14 @@ public class CompressionUtils {
     }
     
     public static String decompress(byte[] bytes) {
+        return decompress(bytes, 0, bytes.length);
+    }
+    
+    public static String decompress(byte[] bytes, int offset, int length) {
         try {
-            InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            byte[] buffer = new byte[262144];  // about 300kb
+            InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes, offset, length));
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(4*length);
+            byte[] buffer = new byte[8192];
             int len;
             while((len = in.read(buffer))>0)
                 baos.write(buffer, 0, len);
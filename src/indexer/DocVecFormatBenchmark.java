@@ -0,0 +1,184 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package indexer;
+
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+import wvec.DocVec;
+import wvec.VecSetCodec;
+import wvec.WordVec;
+import wvec.WordVecs;
+
+/**
+ * Compares the formats of the per document cluster centres (the "vecs"
+ * field): the text of the vectors, as such and gzipped, as written by the
+ * older versions, against the binary float and int8 encodings. For the
+ * first documents of the index, the centres are written in each format to
+ * an index of their own, and the size of the index and the time to load
+ * the centres of all its documents (reading the stored field and decoding
+ * it, as the reranking does) are reported.
+ *
+ * The centres are taken from the vecs field of the index; if it was built
+ * with vocabulary clustering, they're computed from the term vectors
+ * (with wvecs.numclusters clusters per document).
+ *
+ * java indexer.DocVecFormatBenchmark <prop-file> [#docs (1000)] [#rounds (5)]
+ *
+ * @author Debasis
+ */
+public class DocVecFormatBenchmark {
+    static final String[] FORMATS = {"text", "text+gzip", "float", "int8"};
+
+    Properties prop;
+    int numDocs;
+    int numRounds;
+    List<List<WordVec>> docCentroids = new ArrayList<>();
+
+    public DocVecFormatBenchmark(String propFile, int numDocs, int numRounds) throws Exception {
+        prop = new Properties();
+        prop.load(new FileReader(propFile));
+        this.numDocs = numDocs;
+        this.numRounds = numRounds;
+    }
+
+    void loadCentroids() throws Exception {
+        int numClusters = Integer.parseInt(prop.getProperty("wvecs.numclusters", "5"));
+        boolean compressedIndex = Boolean.parseBoolean(prop.getProperty("index.compressed", "true"));
+        boolean wvecsLoaded = false;
+        try (IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(prop.getProperty("index"))))) {
+            int n = Math.min(numDocs, reader.maxDoc());
+            for (int docId = 0; docId < n; docId++) {
+                Document doc = reader.document(docId);
+                if (doc.getField(TrecDocIndexer.FIELD_WORDVEC_CLUSTER_CENTRES) != null) {
+                    docCentroids.add(new DocVec(doc, compressedIndex).getWordVecs());
+                    continue;
+                }
+
+                Terms tfvector = reader.getTermVector(docId, TrecDocIndexer.FIELD_ANALYZED_CONTENT);
+                if (tfvector == null)
+                    continue;
+                if (!wvecsLoaded) {
+                    WordVecs.init(prop);
+                    wvecsLoaded = true;
+                }
+                StringBuffer text = new StringBuffer();
+                TermsEnum termsEnum = tfvector.iterator(null);
+                BytesRef term;
+                while ((term = termsEnum.next()) != null)
+                    text.append(term.utf8ToString()).append(" ");
+                docCentroids.add(new DocVec(doc.get(TrecDocIndexer.FIELD_ID), text.toString())
+                        .getClusterCentroids(numClusters));
+            }
+        }
+        System.out.println("Centres of " + docCentroids.size() + " documents");
+    }
+
+    BytesRef encode(List<WordVec> centroids, String format) {
+        switch (format) {
+            case "text":
+            case "text+gzip":
+                StringBuffer buff = new StringBuffer();
+                int i = 0;
+                for (WordVec wv : centroids)  // as DocVec.getClusterVecs
+                    buff.append(new WordVec("Cluster_" + i++, wv.getPoint()).toString()).append(":");
+                return format.equals("text")? new BytesRef(buff.toString()) : CompressionUtils.compress(buff.toString());
+            default:
+                return new BytesRef(VecSetCodec.encode(centroids, VecSetCodec.encodingOf(format)));
+        }
+    }
+
+    Directory write(String format) throws Exception {
+        Directory dir = new RAMDirectory();
+        IndexWriterConfig iwcfg = new IndexWriterConfig(Version.LUCENE_4_9, new WhitespaceAnalyzer(Version.LUCENE_4_9));
+        try (IndexWriter writer = new IndexWriter(dir, iwcfg)) {
+            for (List<WordVec> centroids : docCentroids) {
+                Document doc = new Document();
+                BytesRef bytes = encode(centroids, format);
+                if (format.equals("text"))
+                    doc.add(new StoredField(TrecDocIndexer.FIELD_WORDVEC_CLUSTER_CENTRES, bytes.utf8ToString()));
+                else
+                    doc.add(new StoredField(TrecDocIndexer.FIELD_WORDVEC_CLUSTER_CENTRES, bytes));
+                writer.addDocument(doc);
+            }
+            writer.forceMerge(1);
+        }
+        return dir;
+    }
+
+    // ms to load the centres of all the documents
+    long load(Directory dir, String format) throws Exception {
+        boolean compressed = !format.equals("text");
+        long start = System.currentTimeMillis();
+        int numVecs = 0;
+        try (IndexReader reader = DirectoryReader.open(dir)) {
+            for (int docId = 0; docId < reader.maxDoc(); docId++) {
+                DocVec docvec = new DocVec(reader.document(docId), compressed);
+                numVecs += docvec.getPacked().size();
+            }
+        }
+        if (numVecs == 0)
+            System.out.println("No vectors loaded");
+        return System.currentTimeMillis() - start;
+    }
+
+    public void run() throws Exception {
+        loadCentroids();
+        if (docCentroids.isEmpty())
+            return;
+
+        StringBuffer buff = new StringBuffer();
+        buff.append("format\tindex (KB)\tbytes/doc\tload (ms)\tus/doc\n");
+        for (String format : FORMATS) {
+            Directory dir = write(format);
+            long size = 0;
+            for (String file : dir.listAll())
+                size += dir.fileLength(file);
+
+            load(dir, format);  // warm up
+            long best = Long.MAX_VALUE;
+            for (int r = 0; r < numRounds; r++)
+                best = Math.min(best, load(dir, format));
+            buff.append(format).append("\t")
+                .append(String.format("%.1f\t%d\t%d\t%.1f", size/1024.0, size/docCentroids.size(),
+                        best, 1000.0*best/docCentroids.size()))
+                .append("\n");
+            dir.close();
+        }
+        System.out.println(buff.toString());
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            args = new String[1];
+            args[0] = "init.properties";
+        }
+        try {
+            int numDocs = args.length > 1? Integer.parseInt(args[1]) : 1000;
+            int numRounds = args.length > 2? Integer.parseInt(args[2]) : 5;
+            new DocVecFormatBenchmark(args[0], numDocs, numRounds).run();
+        }
+        catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package indexer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decompresses the output of the Unix compress utility (the .Z files of
+ * the older TREC disks): LZW with codes of 9 up to maxBits bits packed
+ * least significant bit first, and in block mode a clear code (256)
+ * which resets the dictionary.
+ *
+ * compress writes the codes in groups of 8; when the code width changes
+ * (or the dictionary is cleared) the rest of the current group is padding
+ * and has to be skipped.
+ *
+ * @author Debasis
+ */
+public class LZWInputStream extends FilterInputStream {
+    static final int MAGIC_1 = 0x1f;
+    static final int MAGIC_2 = 0x9d;
+    static final int CLEAR = 256;
+
+    int maxBits;
+    boolean blockMode;
+    int codeBits = 9;
+    int tableSize;
+    int[] prefixes;  // the entry a code extends (-1 for the single bytes)
+    byte[] suffixes; // the byte it adds
+    byte[] stack;    // the bytes of an entry, in reverse
+    int stackSize;
+    int previousCode = -1;
+    byte previousFirst;  // first byte of the previous entry
+    long codesRead;
+
+    int bitBuffer;
+    int numBits;
+    boolean eof;
+    byte[] one = new byte[1];
+
+    public LZWInputStream(InputStream in) throws IOException {
+        super(in);
+        if (in.read() != MAGIC_1 || in.read() != MAGIC_2)
+            throw new IOException("Not in the compress (.Z) format");
+        int flags = in.read();
+        if (flags < 0)
+            throw new IOException("Truncated .Z header");
+        maxBits = flags & 0x1f;
+        blockMode = (flags & 0x80) != 0;
+        if (maxBits < 9 || maxBits > 16)
+            throw new IOException("Unsupported maximum code width " + maxBits);
+        prefixes = new int[1 << maxBits];
+        suffixes = new byte[1 << maxBits];
+        stack = new byte[1 << maxBits];
+        for (int i = 0; i < 256; i++) {
+            prefixes[i] = -1;
+            suffixes[i] = (byte)i;
+        }
+        tableSize = blockMode? 257 : 256;
+    }
+
+    // The next code, or -1 at the end of the input
+    int readCode() throws IOException {
+        while (numBits < codeBits) {
+            int b = in.read();
+            if (b < 0)
+                return -1;
+            bitBuffer |= b << numBits;
+            numBits += 8;
+        }
+        int code = bitBuffer & ((1 << codeBits) - 1);
+        bitBuffer >>>= codeBits;
+        numBits -= codeBits;
+        codesRead++;
+        return code;
+    }
+
+    // Skips the padding up to the end of the current group of 8 codes
+    void realign() throws IOException {
+        while (codesRead % 8 != 0) {
+            if (readCode() < 0)
+                break;
+        }
+        bitBuffer = 0;
+        numBits = 0;
+    }
+
+    // Decodes the next code onto the stack; false at the end of the input
+    boolean decodeNext() throws IOException {
+        int code = readCode();
+        if (code < 0)
+            return false;
+        if (blockMode && code == CLEAR) {
+            tableSize = 257;
+            realign();
+            codeBits = 9;
+            previousCode = -1;
+            return true;
+        }
+
+        int entry = code;
+        if (code == tableSize && previousCode >= 0) {
+            // the entry being defined: the previous one and its own first byte
+            stack[stackSize++] = previousFirst;
+            entry = previousCode;
+        }
+        else if (code >= tableSize) {
+            throw new IOException("Corrupt .Z input (code " + code + " with " + tableSize + " entries)");
+        }
+        while (entry >= 256) {
+            stack[stackSize++] = suffixes[entry];
+            entry = prefixes[entry];
+        }
+        stack[stackSize++] = suffixes[entry];
+        byte first = suffixes[entry];
+
+        if (previousCode >= 0 && tableSize < (1 << maxBits)) {
+            prefixes[tableSize] = previousCode;
+            suffixes[tableSize] = first;
+            tableSize++;
+            if (tableSize == (1 << codeBits) && codeBits < maxBits) {
+                realign();
+                codeBits++;
+            }
+        }
+        previousCode = code;
+        previousFirst = first;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(one, 0, 1) < 0? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        int n = 0;
+        while (n < len) {
+            if (stackSize == 0) {
+                if (eof || !decodeNext()) {
+                    eof = true;
+                    break;
+                }
+                continue;
+            }
+            b[off + n++] = stack[--stackSize];
+        }
+        return n == 0? -1 : n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buff = new byte[4096];
+        long skipped = 0;
+        int r;
+        while (skipped < n && (r = read(buff, 0, (int)Math.min(buff.length, n - skipped))) > 0)
+            skipped += r;
+        return skipped;
+    }
+
+    @Override
+    public int available() { return stackSize; }
+
+    @Override
+    public boolean markSupported() { return false; }
+}
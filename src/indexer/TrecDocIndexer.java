@@ -10,8 +10,17 @@ import java.io.FileReader;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.core.StopFilter;
@@ -19,6 +28,7 @@ import org.apache.lucene.analysis.en.EnglishAnalyzer;
 import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.StoredField;
@@ -27,10 +37,10 @@ import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
 import wvec.DocVec;
+import wvec.TermIdCodec;
+import wvec.VecSetCodec;
+import wvec.WordVec;
 import wvec.WordVecs;
 
 /**
@@ -46,11 +56,58 @@ public class TrecDocIndexer {
     List<String> stopwords;
     int numClusters;
     boolean useVocabClustering;
+    boolean storeDocCentroids;
+    String docSetFormation;
+    int numVocabClusters;
+    byte centroidEncoding;
+    boolean textDocVecs;  // the per document cluster centres as gzipped text (older format)
+    boolean storeTermIds;
+    boolean storeTermIdTfs;
+    Field.TermVector termVectors;
+    
+    // The indexing pipeline: this thread lists the files, numReaders threads
+    // split them into documents and numThreads threads analyze (and cluster)
+    // the documents and add them to the index. The bounded queues between
+    // the stages keep a faster stage from running ahead of a slower one.
+    int numThreads;
+    int numReaders;
+    BlockingQueue<File> fileQueue;
+    BlockingQueue<TrecDoc> docQueue;
+    volatile boolean failed;  // a stage has thrown, the others just drain their queues
+    AtomicInteger numIndexed = new AtomicInteger();
+    
+    static final File NO_MORE_FILES = new File("");
+    static final TrecDoc NO_MORE_DOCS = new TrecDoc(null, null);
     
     static final public String FIELD_ID = "id";
     static final public String FIELD_ANALYZED_CONTENT = "words";  // Standard analyzer w/o stopwords.
     // Each document is represented by a set of cluster centre points
     static final public String FIELD_WORDVEC_CLUSTER_CENTRES = "vecs";  
+    // The centroids of the groups of words of a document (see DocVec.groupCentroids)
+    // as binary doc values, for the set formation, number of vocabulary
+    // clusters and clustering (see ClusterMap.getFingerprint) saved in the
+    // commit data of the index
+    static final public String FIELD_DOC_CENTROIDS = "centroids";
+    static final public String INFO_CENTROIDS_SETFORMATION = "centroids.setformation";
+    static final public String INFO_CENTROIDS_NUMCLUSTERS = "centroids.numclusters";
+    static final public String INFO_CENTROIDS_CLUSTERING = "centroids.clustering";
+    // Forward index: the vocabulary ids of the words of a document (see
+    // TermIdCodec) as binary doc values; the ids are those of the
+    // vocabulary (of the size and hash in the commit data) at indexing time
+    static final public String FIELD_TERM_IDS = "termids";
+    static final public String INFO_TERMIDS_VOCABSIZE = "termids.vocabsize";
+    static final public String INFO_TERMIDS_VOCABHASH = "termids.vocabhash";
+    
+    // A document read from a collection file
+    static class TrecDoc {
+        String id;
+        String text;
+        
+        TrecDoc(String id, String text) {
+            this.id = id;
+            this.text = text;
+        }
+    }
 
     protected List<String> buildStopwordList(String stopwordFileName) {
         List<String> stopwords = new ArrayList<>();
@@ -91,6 +148,20 @@ public class TrecDocIndexer {
         indexDir = new File(indexPath);
         numClusters = Integer.parseInt(prop.getProperty("wvecs.numclusters", "5"));
         useVocabClustering = Boolean.parseBoolean(prop.getProperty("index.clustervocab", "true"));
+        numThreads = Integer.parseInt(prop.getProperty("index.threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        numReaders = Integer.parseInt(prop.getProperty("index.readers", String.valueOf(Math.max(1, numThreads/4))));
+        
+        docSetFormation = prop.getProperty("doc.setformation", "cluster");
+        numVocabClusters = Integer.parseInt(prop.getProperty("retrieve.vocabcluster.numclusters", "0"));
+        storeDocCentroids = useVocabClustering && numVocabClusters > 0 &&
+                Boolean.parseBoolean(prop.getProperty("index.doccentroids", "true"));
+        centroidEncoding = VecSetCodec.encodingOf(prop.getProperty("index.doccentroids.encoding", "float"));
+        textDocVecs = prop.getProperty("index.docvecs.format", "binary").equals("text");
+        storeTermIds = useVocabClustering && Boolean.parseBoolean(prop.getProperty("index.termids", "true"));
+        storeTermIdTfs = Boolean.parseBoolean(prop.getProperty("index.termids.tf", "false"));
+        termVectors = Boolean.parseBoolean(prop.getProperty("index.termvectors", "true"))?
+                Field.TermVector.YES : Field.TermVector.NO;
     }
     
     public Analyzer getAnalyzer() { return analyzer; }
@@ -102,11 +173,27 @@ public class TrecDocIndexer {
         
         IndexWriterConfig iwcfg = new IndexWriterConfig(Version.LUCENE_4_9, analyzer);
         iwcfg.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        // one in-memory segment per indexing thread, so that they don't wait on each other
+        iwcfg.setMaxThreadStates(Math.max(IndexWriterConfig.DEFAULT_MAX_THREAD_STATES, numThreads));
+        iwcfg.setRAMBufferSizeMB(Double.parseDouble(prop.getProperty("index.rambuffer.mb", "256")));
 
         writer = new IndexWriter(FSDirectory.open(indexDir), iwcfg);
         
         indexAll();
         
+        Map<String, String> indexInfo = new HashMap<>();
+        if (storeDocCentroids) {
+            indexInfo.put(INFO_CENTROIDS_SETFORMATION, docSetFormation);
+            indexInfo.put(INFO_CENTROIDS_NUMCLUSTERS, String.valueOf(numVocabClusters));
+            indexInfo.put(INFO_CENTROIDS_CLUSTERING, WordVecs.getClusterFingerprint());
+        }
+        if (storeTermIds) {
+            int vocabSize = WordVecs.getVocabSize();
+            indexInfo.put(INFO_TERMIDS_VOCABSIZE, String.valueOf(vocabSize));
+            indexInfo.put(INFO_TERMIDS_VOCABHASH, String.valueOf(WordVecs.getVocabHash(vocabSize)));
+        }
+        if (!indexInfo.isEmpty())
+            writer.setCommitData(indexInfo);
         writer.close();
     }
     
@@ -119,19 +206,118 @@ public class TrecDocIndexer {
         }
         
         File topDir = new File(prop.getProperty("coll"));
-        indexDirectory(topDir);
+        System.out.println("Indexing with " + numReaders + " reader and " + numThreads + " indexing threads");
+        long start = System.currentTimeMillis();
+        
+        fileQueue = new ArrayBlockingQueue<>(4*numReaders);
+        docQueue = new ArrayBlockingQueue<>(64*numThreads);
+        ExecutorService readers = Executors.newFixedThreadPool(numReaders);
+        ExecutorService indexers = Executors.newFixedThreadPool(numThreads);
+        List<Future<Void>> readerResults = new ArrayList<>();
+        List<Future<Void>> indexerResults = new ArrayList<>();
+        for (int i = 0; i < numReaders; i++)
+            readerResults.add(readers.submit(new FileReaderTask()));
+        for (int i = 0; i < numThreads; i++)
+            indexerResults.add(indexers.submit(new DocIndexerTask()));
+        
+        try {
+            indexDirectory(topDir);
+        }
+        finally {
+            // let every stage finish what's queued (or drain it on failure)
+            for (int i = 0; i < numReaders; i++)
+                fileQueue.put(NO_MORE_FILES);
+            try {
+                waitFor(readerResults, readers);
+            }
+            finally {
+                for (int i = 0; i < numThreads; i++)
+                    docQueue.put(NO_MORE_DOCS);
+                waitFor(indexerResults, indexers);
+            }
+        }
+        
+        System.out.println(String.format("Indexed %d documents in %d s", numIndexed.get(),
+                (System.currentTimeMillis() - start)/1000));
+    }
+    
+    // Waits for the tasks, rethrowing the first exception thrown
+    void waitFor(List<Future<Void>> results, ExecutorService executor) throws Exception {
+        Exception error = null;
+        for (Future<Void> f : results) {
+            try {
+                f.get();
+            }
+            catch (Exception ex) {
+                if (error == null)
+                    error = ex;
+            }
+        }
+        executor.shutdown();
+        if (error != null)
+            throw error;
     }
 
     private void indexDirectory(File dir) throws Exception {
         File[] files = dir.listFiles();
-        for (int i=0; i < files.length; i++) {
+        for (int i=0; i < files.length && !failed; i++) {
             File f = files[i];
             if (f.isDirectory()) {
                 System.out.println("Indexing directory " + f.getName());
                 indexDirectory(f);  // recurse
             }
             else
-                indexFile(f);
+                fileQueue.put(f);
+        }
+    }
+    
+    // Takes elements off the queue until the end marker
+    static <T> void drain(BlockingQueue<T> queue, T end) throws InterruptedException {
+        while (queue.take() != end)
+            ;
+    }
+    
+    // Splits the files into documents
+    class FileReaderTask implements Callable<Void> {
+        @Override
+        public Void call() throws Exception {
+            File file;
+            try {
+                while ((file = fileQueue.take()) != NO_MORE_FILES) {
+                    if (!failed)
+                        indexFile(file);
+                }
+            }
+            catch (Exception ex) {
+                failed = true;
+                drain(fileQueue, NO_MORE_FILES);
+                throw ex;
+            }
+            return null;
+        }
+    }
+    
+    // Analyzes the documents and adds them to the index (IndexWriter is thread safe)
+    class DocIndexerTask implements Callable<Void> {
+        @Override
+        public Void call() throws Exception {
+            TrecDoc trecDoc;
+            try {
+                while ((trecDoc = docQueue.take()) != NO_MORE_DOCS) {
+                    if (failed)
+                        continue;
+                    writer.addDocument(constructDoc(trecDoc.id, trecDoc.text));
+                    int count = numIndexed.incrementAndGet();
+                    if (count % 10000 == 0)
+                        System.out.println("Indexed " + count + " documents...");
+                }
+            }
+            catch (Exception ex) {
+                failed = true;
+                drain(docQueue, NO_MORE_DOCS);
+                throw ex;
+            }
+            return null;
         }
     }
     
@@ -159,44 +345,78 @@ public class TrecDocIndexer {
             stream.close();
 
             // Form the document vector object
-            String docVec = getDocVec(id, tokenizedContentBuff.toString());
-            BytesRef docVecBytes = CompressionUtils.compress(docVec);
+            BytesRef docVecBytes = textDocVecs?
+                    CompressionUtils.compress(getDocVec(id, tokenizedContentBuff.toString())) :
+                    new BytesRef(VecSetCodec.encode(
+                        new DocVec(id, tokenizedContentBuff.toString()).getClusterCentroids(numClusters),
+                        centroidEncoding));
             
             // For the 1st pass, use a standard analyzer to write out
             // the words (also store the term vector)
             doc.add(new Field(FIELD_ANALYZED_CONTENT, content,
-                    Field.Store.NO, Field.Index.ANALYZED, Field.TermVector.YES));
+                    Field.Store.NO, Field.Index.ANALYZED, termVectors));
             doc.add(new StoredField(FIELD_WORDVEC_CLUSTER_CENTRES, docVecBytes));
         }
         else {
             // dont add any additional cluster specific fields
             doc.add(new Field(FIELD_ANALYZED_CONTENT, content,
-                    Field.Store.NO, Field.Index.ANALYZED, Field.TermVector.YES));
+                    Field.Store.NO, Field.Index.ANALYZED, termVectors));
+            Map<String, Integer> terms = storeDocCentroids || storeTermIds? analyzedTerms(content) : null;
+            if (storeDocCentroids) {
+                // the centroids the reranking would otherwise compute from
+                // the term vector of the document for every query
+                HashMap<String, WordVec> centroids = DocVec.groupCentroids(
+                        terms.keySet(), DocVec.getSetFormation(docSetFormation), numVocabClusters);
+                byte[] encoded = VecSetCodec.encode(new ArrayList<>(centroids.values()), centroidEncoding);
+                doc.add(new BinaryDocValuesField(FIELD_DOC_CENTROIDS, new BytesRef(encoded)));
+            }
+            if (storeTermIds)
+                doc.add(new BinaryDocValuesField(FIELD_TERM_IDS, new BytesRef(encodeTermIds(terms))));
         }
         
         return doc;
     }
 
+    // The distinct terms of the content as indexed, with their frequencies
+    Map<String, Integer> analyzedTerms(String content) throws Exception {
+        Map<String, Integer> terms = new LinkedHashMap<>();
+        try (TokenStream stream = analyzer.tokenStream(FIELD_ANALYZED_CONTENT, new StringReader(content))) {
+            CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                String term = termAtt.toString();
+                Integer tf = terms.get(term);
+                terms.put(term, tf == null? 1 : tf + 1);
+            }
+            stream.end();
+        }
+        return terms;
+    }
+    
+    // The vocabulary ids (and tfs) of the terms; those without a vector are left out
+    byte[] encodeTermIds(Map<String, Integer> terms) throws Exception {
+        int[] ids = new int[terms.size()];
+        int[] tfs = storeTermIdTfs? new int[terms.size()] : null;
+        int count = 0;
+        for (Map.Entry<String, Integer> e : terms.entrySet()) {
+            int wordId = WordVecs.getWordId(e.getKey());
+            if (wordId < 0)
+                continue;
+            if (tfs != null)
+                tfs[count] = e.getValue();
+            ids[count++] = wordId;
+        }
+        return TermIdCodec.encode(ids, tfs, count);
+    }
+    
+    // Queues the documents of the file for indexing as they're read
+    // (plain, gzipped or .Z files)
     void indexFile(File file) throws Exception {
-        FileReader fr = new FileReader(file);
-        BufferedReader br = new BufferedReader(fr);
-        String line;
-        Document doc;
-
         System.out.println("Indexing file: " + file.getName());
-        
-        StringBuffer txtbuff = new StringBuffer();
-        while ((line = br.readLine()) != null)
-            txtbuff.append(line).append("\n");
-        String content = txtbuff.toString();
-
-        org.jsoup.nodes.Document jdoc = Jsoup.parse(content);
-        Elements docElts = jdoc.select("DOC");
-
-        for (Element docElt : docElts) {
-            Element docIdElt = docElt.select("DOCNO").first();
-            doc = constructDoc(docIdElt.text(), docElt.text());
-            writer.addDocument(doc);
+        try (TrecDocReader docReader = new TrecDocReader(file)) {
+            TrecDoc trecDoc;
+            while ((trecDoc = docReader.next()) != null)
+                docQueue.put(trecDoc);
         }
     }
 
@@ -0,0 +1,241 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package indexer;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+import indexer.TrecDocIndexer.TrecDoc;
+
+/**
+ * Splits a TREC collection file into its <DOC> elements as it reads it,
+ * through a fixed size buffer, so that the memory used doesn't depend on
+ * the size of the file. Files compressed with gzip or compress (.Z) are
+ * decompressed on the fly (recognized by their magic numbers).
+ *
+ * The text of a document is what the markup encloses, with the tags
+ * (and comments) taken as word separators, runs of white space collapsed
+ * into one space and the common entities decoded, i.e. what the Jsoup
+ * text() of the element gave. The id is the text of the <DOCNO>.
+ * The bytes are read as Latin-1.
+ *
+ * @author Debasis
+ */
+public class TrecDocReader implements Closeable {
+    static final int BUFFER_SIZE = 1 << 16;
+    static final int MAX_TAG_NAME = 16;
+    static final int MAX_ENTITY = 8;
+
+    static final int OTHER = 0;
+    static final int OPEN_DOC = 1;
+    static final int CLOSE_DOC = 2;
+    static final int OPEN_DOCNO = 3;
+    static final int CLOSE_DOCNO = 4;
+
+    ReadableByteChannel channel;
+    ByteBuffer buff;
+    byte[] bytes;
+    int pos, limit;
+
+    // reused across the documents
+    StringBuilder text = new StringBuilder();
+    StringBuilder docno = new StringBuilder();
+    StringBuilder name = new StringBuilder();
+    boolean inDocno;
+    boolean space;  // white space seen since the last character
+
+    public TrecDocReader(File file) throws IOException {
+        FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        ByteBuffer magic = ByteBuffer.allocate(2);
+        while (magic.hasRemaining() && fileChannel.read(magic) >= 0)
+            ;
+        fileChannel.position(0);
+
+        if (magic.position() == 2 && magic.get(0) == (byte)0x1f && magic.get(1) == (byte)0x8b)
+            channel = Channels.newChannel(new GZIPInputStream(Channels.newInputStream(fileChannel), BUFFER_SIZE));
+        else if (magic.position() == 2 && magic.get(0) == (byte)LZWInputStream.MAGIC_1
+                && magic.get(1) == (byte)LZWInputStream.MAGIC_2)
+            channel = Channels.newChannel(new LZWInputStream(
+                    new BufferedInputStream(Channels.newInputStream(fileChannel), BUFFER_SIZE)));
+        else
+            channel = fileChannel;
+
+        buff = ByteBuffer.allocate(BUFFER_SIZE);
+        bytes = buff.array();
+    }
+
+    int read() throws IOException {
+        if (pos == limit) {
+            buff.clear();
+            int n;
+            while ((n = channel.read(buff)) == 0)
+                ;
+            if (n < 0)
+                return -1;
+            pos = 0;
+            limit = buff.position();
+        }
+        return bytes[pos++] & 0xff;
+    }
+
+    // Puts back the character just read
+    void unread() { pos--; }
+
+    // The next document of the file, or null if there are no more
+    public TrecDoc next() throws IOException {
+        int c;
+        do {
+            c = read();
+            if (c < 0)
+                return null;
+        }
+        while (c != '<' || readTag() != OPEN_DOC);
+
+        text.setLength(0);
+        docno.setLength(0);
+        inDocno = false;
+        space = false;
+        while ((c = read()) >= 0) {
+            if (c == '<') {
+                int tag = readTag();
+                if (tag == CLOSE_DOC)
+                    break;
+                else if (tag == OPEN_DOCNO)
+                    inDocno = true;
+                else if (tag == CLOSE_DOCNO)
+                    inDocno = false;
+                space = true;
+            }
+            else if (c == '&')
+                readEntity();
+            else
+                append(c);
+        }
+        return new TrecDoc(docno.toString().trim(), text.toString());
+    }
+
+    void append(int c) {
+        if (c <= ' ') {
+            space = true;
+            if (inDocno)
+                docno.append(' ');
+            return;
+        }
+        if (space && text.length() > 0)
+            text.append(' ');
+        space = false;
+        text.append((char)c);
+        if (inDocno)
+            docno.append((char)c);
+    }
+
+    // Reads the rest of a tag after the '<' and tells which it is; a '<'
+    // which doesn't start a tag is just text
+    int readTag() throws IOException {
+        int c = read();
+        if (c < 0)
+            return OTHER;
+        if (c == '!') {
+            skipComment();
+            return OTHER;
+        }
+        boolean closing = c == '/';
+        if (closing)
+            c = read();
+        if (!Character.isLetter(c)) {
+            if (c >= 0)
+                unread();
+            append('<');
+            if (closing)
+                append('/');
+            return OTHER;
+        }
+
+        name.setLength(0);
+        while (c >= 0 && c != '>' && c > ' ') {
+            if (name.length() < MAX_TAG_NAME)
+                name.append((char)Character.toUpperCase(c));
+            c = read();
+        }
+        while (c >= 0 && c != '>')  // attributes
+            c = read();
+
+        if (name.length() == 3 && name.indexOf("DOC") == 0)
+            return closing? CLOSE_DOC : OPEN_DOC;
+        if (name.length() == 5 && name.indexOf("DOCNO") == 0)
+            return closing? CLOSE_DOCNO : OPEN_DOCNO;
+        return OTHER;
+    }
+
+    // Skips a comment (<!-- ... -->) or declaration (<! ... >)
+    void skipComment() throws IOException {
+        int c = read();
+        if (c != '-') {
+            while (c >= 0 && c != '>')
+                c = read();
+            return;
+        }
+        int dashes = 0;
+        while ((c = read()) >= 0) {
+            if (c == '>' && dashes >= 2)
+                return;
+            dashes = c == '-'? dashes+1 : 0;
+        }
+    }
+
+    // Decodes an entity after the '&'; an unknown one is kept as it is
+    void readEntity() throws IOException {
+        name.setLength(0);
+        int c;
+        while ((c = read()) >= 0 && name.length() < MAX_ENTITY && (Character.isLetterOrDigit(c) || c == '#'))
+            name.append((char)c);
+        int decoded = c == ';'? decode(name) : -1;
+        if (decoded >= 0) {
+            append(decoded);
+            return;
+        }
+        if (c >= 0)
+            unread();
+        append('&');
+        for (int i = 0; i < name.length(); i++)
+            append(name.charAt(i));
+    }
+
+    static int decode(CharSequence entity) {
+        String e = entity.toString();
+        switch (e) {
+            case "amp": return '&';
+            case "lt": return '<';
+            case "gt": return '>';
+            case "quot": return '"';
+            case "apos": return '\'';
+            case "nbsp": return ' ';
+        }
+        if (e.length() > 1 && e.charAt(0) == '#') {
+            try {
+                int code = e.charAt(1) == 'x' || e.charAt(1) == 'X'?
+                        Integer.parseInt(e.substring(2), 16) : Integer.parseInt(e.substring(1));
+                return code <= 0xffff? code : -1;
+            }
+            catch (NumberFormatException ex) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -7,19 +7,28 @@ package retriever;
 
 import indexer.TrecDocIndexer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.BinaryDocValues;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiDocValues;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.util.BytesRef;
+import retriever.VecSimRetriever.DocVecKey;
 import trec.TRECQuery;
 import wvec.DocVec;
+import wvec.TermIdCodec;
+import wvec.VecCache;
+import wvec.VecSetCodec;
 import wvec.WordVec;
 import wvec.WordVecs;
 
@@ -43,16 +52,35 @@ public class DocVecSimilarity {
     VecSimRetriever retriver;
     
     boolean compressedIndex, vocabCluster;
+    int numVocabClusters;  // granularity of the word clusters (any cut of a hierarchical clustering)
     byte allDocWords;
     float textSimWt;
 
-    static final byte WORDS_AS_CLUSTERS = 0;
-    static final byte ALL_WORDS_AS_SEPARATE_CLUSTERS = 1;
-    static final byte ALL_WORDS_AS_ONE_CLUSTER = 2;
+    static final byte WORDS_AS_CLUSTERS = DocVec.WORDS_AS_CLUSTERS;
+    static final byte ALL_WORDS_AS_SEPARATE_CLUSTERS = DocVec.ALL_WORDS_AS_SEPARATE_CLUSTERS;
+    static final byte ALL_WORDS_AS_ONE_CLUSTER = DocVec.ALL_WORDS_AS_ONE_CLUSTER;
+    static final int RERANK_GRAIN = 8;  // candidates scored by a task of the parallel reranking
+    
+    // The centroids of the documents computed at indexing time are used if
+    // they're of the same set formation and number of clusters as asked for,
+    // and the forward index of the words of the documents if it's stored.
+    // Their doc values are got by each thread that reads them: the codec
+    // keeps an instance per thread, and the bytes an instance returns are
+    // reused by its next get.
+    boolean docCentroidsStored;
+    boolean termIdsStored;
+    
+    // The document vectors kept across the queries (null if disabled), for
+    // the set formation and number of clusters, and the reader, of this one
+    VecCache<DocVecKey, DocVec> docVecCache;
+    byte cacheSetFormation;
+    int cacheNumClusters;
+    int readerGeneration;
     
     public DocVecSimilarity(VecSimRetriever retriever, TopDocs topDocs, TRECQuery query, float textSimWt) throws Exception {
         this.retriver = retriever;
         this.reader = retriever.reader;
+        this.readerGeneration = retriever.readerGeneration;
         this.prop = retriever.prop;
         this.topDocs = topDocs;
         this.query = query;
@@ -60,6 +88,10 @@ public class DocVecSimilarity {
         
         // The vector representation for the query
         queryVec = new DocVec(query.getLuceneQueryObj());
+        // one asymmetric distance table per query vector if the vocabulary is
+        // product quantized, so that a document word costs m lookups
+        if (WordVecs.getVocabulary() != null)  // not loaded in lazy mode
+            queryVec.prepare(WordVecs.getVocabulary().getEncodedVecs());
         
         this.textSimWt = textSimWt;
         
@@ -75,91 +107,185 @@ public class DocVecSimilarity {
         compressedIndex = Boolean.parseBoolean(prop.getProperty("index.compressed", "true"));
         // possible values cluster/one/all
         String docSetFormation = prop.getProperty("doc.setformation", "cluster");
-        allDocWords = docSetFormation.equals("cluster")? WORDS_AS_CLUSTERS:
-                docSetFormation.equals("one")?
-                ALL_WORDS_AS_ONE_CLUSTER : ALL_WORDS_AS_SEPARATE_CLUSTERS;
+        allDocWords = DocVec.getSetFormation(docSetFormation);
         this.vocabCluster = retriever.numVocabClusters > 0;
+        numVocabClusters = Integer.parseInt(prop.getProperty("retrieve.vocabcluster.numclusters", "0"));
+        if (vocabCluster) {
+            docCentroidsStored = retriever.hasDocCentroids(docSetFormation, numVocabClusters);
+            termIdsStored = retriever.hasTermIds();
+        }
+        
+        docVecCache = retriever.docVecCache;
+        cacheSetFormation = vocabCluster? allDocWords : -1;
+        cacheNumClusters = vocabCluster? numVocabClusters : 0;
     }
 
-    HashMap<String, WordVec> loadWordClusterInfo(int docId, byte allDocWords) throws Exception {
-        String termText;
+    // termIds: this thread's doc values of the forward index (null if not stored)
+    HashMap<String, WordVec> loadWordClusterInfo(int docId, byte allDocWords, BinaryDocValues termIds) throws Exception {
         BytesRef term;
         Terms tfvector;
         TermsEnum termsEnum;
-        HashMap<Integer, List<WordVec>> clusterMap = new HashMap<>();
+        List<String> words = new ArrayList<>();
+        
+        if (termIds != null) {
+            // the vocabulary ids from the forward index, no term lookups
+            BytesRef bytes = termIds.get(docId);
+            int[] wordIds = TermIdCodec.decodeIds(bytes.bytes, bytes.offset, bytes.length);
+            return DocVec.groupCentroids(wordIds, allDocWords, numVocabClusters);
+        }
         
         tfvector = retriver.reader.getTermVector(docId, TrecDocIndexer.FIELD_ANALYZED_CONTENT);
+        if (tfvector == null)  // indexed without term vectors (and so with the term ids)
+            return new HashMap<>();
         
         // Construct the normalized tf vector
         termsEnum = tfvector.iterator(null); // access the terms for this field
-        
-        int wordId = 0;
-        //System.out.println("Getting cluster ids for document " + docId);
     	while ((term = termsEnum.next()) != null) { // explore the terms for this field
-            wordId++;
-            termText = term.utf8ToString();
-            int clusterId =
-                    allDocWords==ALL_WORDS_AS_SEPARATE_CLUSTERS? wordId : // each word a new cluster id
-                    allDocWords==WORDS_AS_CLUSTERS? WordVecs.getClusterId(termText): // cluster ids from vocab
-                    0; // each word the same cluster id
-            if (clusterId < 0)
-                continue;
-            
-            // Get the term and its cluster id.. Store in a hashmap for
-            // computing group-wise centroids
-            WordVec wv = WordVecs.getVecCached(termText);
-            if (wv == null)
-                continue;
-            List<WordVec> veclist = clusterMap.get(clusterId);
-            if (veclist == null) {
-                veclist = new ArrayList<>();
-                clusterMap.put(clusterId, veclist);
-            }
-            veclist.add(wv);
+            words.add(term.utf8ToString());
         }
-        //System.out.println("Got cluster ids for doc " + docId);
-
+        
         // Return a list of centroids computed by grouping together the cluster ids
-        HashMap<String, WordVec> centroids = new HashMap<>();
+        return DocVec.groupCentroids(words, allDocWords, numVocabClusters);
+    }
+    
+    // The centroids of the documents stored at indexing time, read in the
+    // order of the doc ids (i.e. sequentially through the doc values)
+    DocVec[] loadDocCentroids() throws Exception {
+        Integer[] order = new Integer[numDocs];
+        for (int i = 0; i < numDocs; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(topDocs.scoreDocs[a].doc, topDocs.scoreDocs[b].doc);
+            }
+        });
         
-        //System.out.println("#clusters in doc " + docId + ": " + clusterMap.size());
-        for (Map.Entry<Integer, List<WordVec>> e : clusterMap.entrySet()) {
-            List<WordVec> veclist = e.getValue();
-            WordVec centroid = WordVecs.getCentroid(veclist);
-            centroids.put("Cluster: " + e.getKey(), centroid);
+        DocVec[] docvecs = new DocVec[numDocs];
+        BinaryDocValues docCentroids = MultiDocValues.getBinaryValues(reader, TrecDocIndexer.FIELD_DOC_CENTROIDS);
+        for (int i : order) {
+            int docId = topDocs.scoreDocs[i].doc;
+            docvecs[i] = getCachedDocVec(docId);
+            if (docvecs[i] != null)
+                continue;
+            BytesRef bytes = docCentroids.get(docId);
+            docvecs[i] = cacheDocVec(docId, new DocVec(VecSetCodec.decode(bytes.bytes, bytes.offset, bytes.length)));
         }
-        
-        return centroids;
+        return docvecs;
+    }
+    
+    DocVec getCachedDocVec(int docId) {
+        if (docVecCache == null)
+            return null;
+        return docVecCache.get(new DocVecKey(docId, cacheSetFormation, cacheNumClusters, readerGeneration));
+    }
+    
+    // Caches the packed vectors of the document (i.e. without the map of
+    // its words), and returns the ones cached
+    DocVec cacheDocVec(int docId, DocVec docvec) {
+        if (docVecCache == null)
+            return docvec;
+        return docVecCache.putIfAbsent(new DocVecKey(docId, cacheSetFormation, cacheNumClusters, readerGeneration),
+                new DocVec(docvec.getPacked()));
     }
     
     ScoreDoc[] computeSims() throws Exception {
         
         SetSimilarityMeasure simMeasure = simMeasures.get(prop.getProperty("sim_measure", "single-link"));
-        float simValue;
         ScoreDoc[] scoreDocs = new ScoreDoc[numDocs];
+        DocVec[] storedCentroids = docCentroidsStored? loadDocCentroids() : null;
         
-        int i = 0;
+        // the candidates are independent... scored in parallel (in place in
+        // scoreDocs) unless there are too few of them to be worth it
+        ForkJoinPool pool = retriver.rerankPool;
+        if (pool == null || numDocs < retriver.rerankParallelMin) {
+            computeSims(simMeasure, storedCentroids, scoreDocs, 0, numDocs);
+            return scoreDocs;
+        }
+        try {
+            pool.invoke(new RerankTask(simMeasure, storedCentroids, scoreDocs, 0, numDocs));
+        }
+        catch (RerankFailure ex) {
+            Throwable cause = ex;
+            while (cause instanceof RerankFailure)  // the pool may wrap it again
+                cause = cause.getCause();
+            if (cause instanceof Exception)
+                throw (Exception)cause;
+            throw (Error)cause;
+        }
+        return scoreDocs;
+    }
+    
+    // Scores the candidates [from, to) of the top docs into scoreDocs
+    void computeSims(SetSimilarityMeasure simMeasure, DocVec[] storedCentroids,
+            ScoreDoc[] scoreDocs, int from, int to) throws Exception {
+        float simValue;
         DocVec docvec;
-        for (ScoreDoc sd : topDocs.scoreDocs) {
-            Document doc = reader.document(sd.doc);
-            
+        BinaryDocValues termIds = null;  // got on the first document not cached
+        for (int i = from; i < to; i++) {
+            ScoreDoc sd = topDocs.scoreDocs[i];
             // Two control flows depending on the type of the word clusters
             // we are interested in... i.e. global or per document...
             // the former is stored in an auxiliary index, latter stored
             // as auxiliary field of the retrievable document index...
-            if (vocabCluster) {
-                HashMap<String, WordVec> wvmap = loadWordClusterInfo(sd.doc, allDocWords);
-                docvec = new DocVec(wvmap);
+            // unless stored at indexing time or computed for an earlier query
+            docvec = storedCentroids != null? storedCentroids[i] : getCachedDocVec(sd.doc);
+            if (docvec == null && vocabCluster) {
+                if (termIdsStored && termIds == null)
+                    termIds = MultiDocValues.getBinaryValues(reader, TrecDocIndexer.FIELD_TERM_IDS);
+                HashMap<String, WordVec> wvmap = loadWordClusterInfo(sd.doc, allDocWords, termIds);
+                docvec = cacheDocVec(sd.doc, new DocVec(wvmap));
             }
-            else {
-                docvec = new DocVec(doc, compressedIndex);
+            else if (docvec == null) {
+                Document doc = reader.document(sd.doc);
+                docvec = cacheDocVec(sd.doc, new DocVec(doc, compressedIndex));
             }
             
             //simValue = textSimWt*sd.score + (1-textSimWt)*simMeasure.computeSim(queryVec, docvec);
             simValue = simMeasure.computeSim(queryVec, docvec);
-            scoreDocs[i++] = new ScoreDoc(sd.doc, simValue);
+            scoreDocs[i] = new ScoreDoc(sd.doc, simValue);
         }
+    }
+    
+    static class RerankFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
         
-        return scoreDocs;
-    }       
+        RerankFailure(Throwable cause) { super(cause); }
+    }
+    
+    // Splits the candidates in halves down to RERANK_GRAIN of them, so that
+    // the idle workers steal the halves not yet started
+    class RerankTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        SetSimilarityMeasure simMeasure;
+        DocVec[] storedCentroids;
+        ScoreDoc[] scoreDocs;
+        int from, to;
+        
+        RerankTask(SetSimilarityMeasure simMeasure, DocVec[] storedCentroids,
+                ScoreDoc[] scoreDocs, int from, int to) {
+            this.simMeasure = simMeasure;
+            this.storedCentroids = storedCentroids;
+            this.scoreDocs = scoreDocs;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from <= RERANK_GRAIN) {
+                try {
+                    computeSims(simMeasure, storedCentroids, scoreDocs, from, to);
+                }
+                catch (Exception ex) {
+                    throw new RerankFailure(ex);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RerankTask(simMeasure, storedCentroids, scoreDocs, from, mid),
+                    new RerankTask(simMeasure, storedCentroids, scoreDocs, mid, to));
+        }
+    }
 }
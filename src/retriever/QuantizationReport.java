@@ -0,0 +1,93 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package retriever;
+
+import evaluator.Evaluator;
+import java.io.FileReader;
+import java.util.Map;
+import java.util.Properties;
+import wvec.WordVecs;
+
+/**
+ * Runs the retrieval once with full precision word vectors and once with
+ * the quantization configured in wvecs.quantize (int8/fp16), and reports
+ * the change in the evaluation metrics along with the memory used by the
+ * vectors, so as to judge whether the savings are worth it.
+ *
+ * @author Debasis
+ */
+public class QuantizationReport {
+    String propFile;
+    
+    public QuantizationReport(String propFile) {
+        this.propFile = propFile;
+    }
+    
+    Map<String, Float> run(String quantization, long[] ramBytes) throws Exception {
+        VecSimRetriever retriever = new VecSimRetriever(propFile);
+        Properties prop = retriever.getProperties();
+        try {
+            prop.setProperty("wvecs.quantize", quantization);
+            prop.setProperty("res.file", prop.getProperty("res.file") + "." + quantization);
+            prop.setProperty("eval", "false");
+            prop.setProperty("wvecs.lazy", "false");  // compares the in-memory vocabularies
+            
+            WordVecs.init(prop);
+            ramBytes[0] = WordVecs.getVocabulary().ramBytes();
+            long start = System.currentTimeMillis();
+            retriever.retrieveAll();
+            System.out.println("Retrieval with " + quantization + " vectors took " + (System.currentTimeMillis() - start) + " ms");
+            WordVecs.close();
+        }
+        finally {
+            retriever.close();
+        }
+        
+        Evaluator evaluator = new Evaluator(prop);
+        evaluator.load();
+        evaluator.fillRelInfo();
+        return evaluator.computeMetrics();
+    }
+    
+    public void report() throws Exception {
+        Properties prop = new Properties();
+        prop.load(new FileReader(propFile));
+        String quantization = prop.getProperty("wvecs.quantize", "int8");
+        if (quantization.equals("none"))
+            quantization = "int8";
+        
+        long[] baseRam = new long[1], quantizedRam = new long[1];
+        Map<String, Float> base = run("none", baseRam);
+        Map<String, Float> quantized = run(quantization, quantizedRam);
+        
+        StringBuffer buff = new StringBuffer();
+        buff.append("metric\tnone\t").append(quantization).append("\tchange\n");
+        for (Map.Entry<String, Float> e : base.entrySet()) {
+            float b = e.getValue();
+            float q = quantized.get(e.getKey());
+            buff.append(e.getKey()).append("\t").append(b).append("\t").append(q).append("\t")
+                .append(String.format("%+.2f%%", b > 0? 100*(q - b)/b : 0)).append("\n");
+        }
+        buff.append(String.format("memory (MB)\t%.1f\t%.1f\t%.1fx smaller\n",
+                baseRam[0]/(1024.0*1024.0), quantizedRam[0]/(1024.0*1024.0),
+                baseRam[0]/(double)quantizedRam[0]));
+        System.out.println(buff.toString());
+    }
+    
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            args = new String[1];
+            args[0] = "init.properties";
+        }
+        try {
+            QuantizationReport report = new QuantizationReport(args[0]);
+            report.report();
+        }
+        catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+}
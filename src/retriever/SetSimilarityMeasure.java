@@ -6,15 +6,15 @@
 package retriever;
 
 import indexer.TrecDocIndexer;
-import java.util.List;
 import java.util.Properties;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import wvec.DocVec;
-import wvec.WordVec;
-import wvec.WordVecs;
+import wvec.PackedVecs;
 
 /**
+ * The similarity of two sets of vectors. The measures work on the
+ * similarity block of the packed sets (see PackedVecs).
  *
  * @author Debasis
  */
@@ -22,22 +22,26 @@ interface SetSimilarityMeasure {
     public float computeSim(DocVec a, DocVec b) throws Exception;
 }
 
+// The similarity block of two sets in a buffer of the calling thread, so
+// that the reranking (possibly in parallel) doesn't allocate one for every
+// candidate. The buffer is overwritten by the next call on the thread.
+class SimScratch {
+    static final ThreadLocal<float[]> buffer = new ThreadLocal<>();
+    
+    static float[] simBlock(PackedVecs pa, PackedVecs pb) {
+        float[] sims = PackedVecs.simBlock(pa, pb, buffer.get());
+        buffer.set(sims);
+        return sims;
+    }
+}
+
 class SingleLinkageSim implements SetSimilarityMeasure {
 
     @Override
     public float computeSim(DocVec a, DocVec b) throws Exception {
-        List<WordVec> alist = a.getWordVecs();
-        List<WordVec> blist = b.getWordVecs();
-
-        float maxSim = 0, sim;
-        for (WordVec avec : alist) {
-            for (WordVec bvec : blist) {
-                sim = WordVecs.getSim(avec, bvec);
-                if (sim > maxSim)
-                    maxSim = sim;
-            }
-        }
-        return maxSim;
+        PackedVecs pa = a.getPacked(), pb = b.getPacked();
+        float[] sims = SimScratch.simBlock(pa, pb);
+        return PackedVecs.max(sims, pa.size(), pb.size(), 0);
     }    
 }
 
@@ -45,18 +49,9 @@ class CompleteLinkageSim implements SetSimilarityMeasure {
 
     @Override
     public float computeSim(DocVec a, DocVec b) throws Exception {
-        List<WordVec> alist = a.getWordVecs();
-        List<WordVec> blist = b.getWordVecs();
-
-        float minSim = 1f, sim;
-        for (WordVec avec : alist) {
-            for (WordVec bvec : blist) {
-                sim = WordVecs.getSim(avec, bvec);
-                if (sim < minSim)
-                    minSim = sim;
-            }
-        }
-        return minSim;
+        PackedVecs pa = a.getPacked(), pb = b.getPacked();
+        float[] sims = SimScratch.simBlock(pa, pb);
+        return PackedVecs.min(sims, pa.size(), pb.size(), 1f);
     }    
 }
 
@@ -68,36 +63,52 @@ class CentroidLinkageSim implements SetSimilarityMeasure {
     IndexReader reader;
     int numDocs;
     
+    boolean closedForm;
+    
+    // idf weights of the words of the (query) set last seen
+    PackedVecs weightedSet;
+    float[] weights;
+    
     public CentroidLinkageSim(Properties prop, IndexReader reader) {
         this.prop = prop;
         this.reader = reader;
         useIDFWeights = Boolean.parseBoolean(prop.getProperty("centroidsim.weighted", "false"));
+        closedForm = Boolean.parseBoolean(prop.getProperty("centroidsim.closedform", "true"));
         numDocs = reader.numDocs();
     }
     
+    // The weights depend only on the query words, so they're computed once per query
+    synchronized float[] getWeights(PackedVecs pa) throws Exception {
+        if (weightedSet != pa) {
+            float[] w = new float[pa.size()];
+            for (int i = 0; i < w.length; i++) {
+                float df = reader.docFreq(new Term(TrecDocIndexer.FIELD_ANALYZED_CONTENT, pa.getWord(i)));
+                w[i] = (float)Math.log(numDocs/df);
+            }
+            weights = w;
+            weightedSet = pa;
+        }
+        return weights;
+    }
+    
     @Override
     public float computeSim(DocVec a, DocVec b) throws Exception {
-        List<WordVec> alist = a.getWordVecs();
-        List<WordVec> blist = b.getWordVecs();
-
-        float avgSim = 0;
-        float thisSim;
-        float normalizationFactor = 0;
-        float wt = 1;
+        PackedVecs pa = a.getPacked(), pb = b.getPacked();
+        int na = pa.size(), nb = pb.size();
+        // unweighted, the mean of the cosines of the (unit) rows is that of
+        // the dot products of the sums of the rows... O(d) per candidate
+        if (!useIDFWeights && closedForm)
+            return PackedVecs.simSum(pa, pb)/(float)(na*nb);
         
-        for (WordVec avec : alist) {
-            if (useIDFWeights) {
-                float df = reader.docFreq(new Term(TrecDocIndexer.FIELD_ANALYZED_CONTENT, avec.getWord()));
-                wt = (float)Math.log(numDocs/df);
-            }
-            
-            for (WordVec bvec : blist) {
-                thisSim = WordVecs.getSim(avec, bvec);
-                avgSim += thisSim*wt;
-                normalizationFactor = normalizationFactor + wt;
-            }            
-        }
-        return avgSim/(float)(normalizationFactor);
+        float[] sims = SimScratch.simBlock(pa, pb);
+        if (!useIDFWeights)
+            return PackedVecs.sum(sims, na, nb)/(float)(na*nb);
+        
+        float[] w = getWeights(pa);
+        float normalizationFactor = 0;
+        for (float wt : w)
+            normalizationFactor += wt*nb;
+        return PackedVecs.weightedSum(sims, na, nb, w)/normalizationFactor;
     }    
 }
 
@@ -105,37 +116,13 @@ class GroupAvgSim implements SetSimilarityMeasure {
 
     @Override
     public float computeSim(DocVec a, DocVec b) throws Exception {
-        List<WordVec> alist = a.getWordVecs();
-        List<WordVec> blist = b.getWordVecs();
-
-        int alen = alist.size();
-        int blen = blist.size();
-        
-        float avgSim = 0;
-        
-        // a vec list intrasim
-        for (int i = 0; i < alen; i++) {            
-            WordVec vec_i = alist.get(i);
-            for (int j = i+1; j < alen; j++) {
-                WordVec vec_j = alist.get(j);
-                avgSim += WordVecs.getSim(vec_i, vec_j);
-            }
-        }
-        
-        // a vec list intrasim
-        for (int i = 0; i < blen; i++) {            
-            WordVec vec_i = blist.get(i);
-            for (int j = i+1; j < blen; j++) {
-                WordVec vec_j = blist.get(j);
-                avgSim += WordVecs.getSim(vec_i, vec_j);
-            }
-        }
+        PackedVecs pa = a.getPacked(), pb = b.getPacked();
+        int alen = pa.size();
+        int blen = pb.size();
         
-        for (WordVec avec : alist) {
-            for (WordVec bvec : blist) {
-                avgSim += WordVecs.getSim(avec, bvec);
-            }
-        }
+        // the intra similarities of the query set are computed only once
+        float avgSim = pa.intraSimSum() + pb.intraSimSum();
+        avgSim += PackedVecs.sum(SimScratch.simBlock(pa, pb), alen, blen);
         
         int totalNumComparisons = alen*(alen-1)/2 + blen*(blen-1)/2 + alen*blen;
         return avgSim/(float)(totalNumComparisons);
@@ -144,28 +131,15 @@ class GroupAvgSim implements SetSimilarityMeasure {
 
 class HausdorffSim implements SetSimilarityMeasure {
 
-    private float simAB(List<WordVec> alist, List<WordVec> blist) {
-        float daB, dAB = 0;
-        for (WordVec avec : alist) {
-            daB = Float.MAX_VALUE;
-            for (WordVec bvec : blist) {
-                float thisSim = avec.cosineSim(bvec);
-                if (thisSim < daB)
-                    daB = thisSim;
-            }
-            if (daB > dAB)
-                dAB = daB;
-        }
-        return dAB;
-    }
-    
     @Override
     public float computeSim(DocVec a, DocVec b) throws Exception {
-        List<WordVec> alist = a.getWordVecs();
-        List<WordVec> blist = b.getWordVecs();
+        PackedVecs pa = a.getPacked(), pb = b.getPacked();
+        int na = pa.size(), nb = pb.size();
+        float[] sims = SimScratch.simBlock(pa, pb);
 
-        float dAB = simAB(alist, blist);
-        float dBA = simAB(blist, alist);
+        // the directed distances both ways from the one block
+        float dAB = PackedVecs.maxOfRowMins(sims, na, nb);
+        float dBA = PackedVecs.maxOfColMins(sims, na, nb);
         
         float hAB = Math.max(dAB, dBA);
         return (float)Math.exp(-hAB*hAB);
@@ -177,20 +151,14 @@ class CentroidLinkageAngleDist implements SetSimilarityMeasure {
 
     @Override
     public float computeSim(DocVec a, DocVec b) throws Exception {
-        List<WordVec> alist = a.getWordVecs();
-        List<WordVec> blist = b.getWordVecs();
+        PackedVecs pa = a.getPacked(), pb = b.getPacked();
+        int na = pa.size(), nb = pb.size();
+        float[] sims = SimScratch.simBlock(pa, pb);
 
         float avgDist = 0;
-        float thisSim;
-        
-        for (WordVec avec : alist) {            
-            for (WordVec bvec : blist) {
-                thisSim = WordVecs.getAngularDist(avec, bvec);
-                avgDist += thisSim;
-            }            
-        }
-        avgDist = avgDist/(float)(alist.size()*blist.size());
+        for (int i = 0; i < na*nb; i++)
+            avgDist += (float)Math.acos(sims[i]);
+        avgDist = avgDist/(float)(na*nb);
         return (float)Math.exp(-avgDist*avgDist);
     }    
 }
-
@@ -7,12 +7,22 @@ package retriever;
 
 import evaluator.Evaluator;
 import indexer.TrecDocIndexer;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
@@ -20,11 +30,12 @@ import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.TopScoreDocCollector;
-import org.apache.lucene.search.similarities.DefaultSimilarity;
 import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
 import org.apache.lucene.store.FSDirectory;
 import trec.TRECQuery;
 import trec.TRECQueryParser;
+import wvec.DocVec;
+import wvec.VecCache;
 import wvec.WordVecs;
 
 /**
@@ -42,10 +53,8 @@ class ScoreDocComparator implements Comparator<ScoreDoc> {
 
 public class VecSimRetriever {
     TrecDocIndexer indexer;
-    IndexReader reader;
-    IndexReader clusterInfoReader;
-    IndexSearcher searcher;
-    IndexSearcher clusterIdSearcher;
+    volatile IndexReader reader;  // replaced by reopen
+    volatile IndexSearcher searcher;
     int numWanted;
     Properties prop;
     String runName;
@@ -53,6 +62,23 @@ public class VecSimRetriever {
     float textSimWt;
     String resultsFile;
     int numVocabClusters;
+    String docCentroidsKey;  // set formation and number of clusters of the document centroids stored at indexing time (null if none)
+    boolean termIdsUsable;   // the forward index of the vocabulary ids of the words is stored, and of this vocabulary
+    Map<String, String> indexInfo;
+    boolean termIdsChecked;
+    boolean docCentroidsChecked, docCentroidsUsable;  // of the clustering of the loaded vocabulary
+    ForkJoinPool rerankPool;  // scores the candidates of a query in parallel (null if single threaded)
+    int rerankParallelMin;    // fewer candidates than this are scored sequentially
+    float lambda;
+    int reopenEvery;  // queries per batch, the index being reopened between the batches (0 for one batch)
+    
+    // The document vectors of the reranking, kept across the queries (null
+    // if disabled); the keys carry the generation of the reader, which
+    // reopen bumps, so that those of an older reader are never used
+    VecCache<DocVecKey, DocVec> docVecCache;
+    volatile int readerGeneration;
+    
+    static final int QUERY_WINDOW = 4;  // queries in flight per query thread
     
     public VecSimRetriever(String propFile) throws Exception {
         this.indexer = new TrecDocIndexer(propFile);
@@ -62,23 +88,143 @@ public class VecSimRetriever {
         System.out.println("Running queries against index: " + indexDir.getPath());
         reader = DirectoryReader.open(FSDirectory.open(indexDir));
                 
+        // the cluster ids of the words are looked up through WordVecs
         numVocabClusters = Integer.parseInt(prop.getProperty("retrieve.vocabcluster.numclusters", "0"));
-        if (numVocabClusters > 0) {
-            String clusterInfoIndexPath = prop.getProperty("wvecs.clusterids.basedir") + "/" + numVocabClusters;
-            clusterInfoReader = DirectoryReader.open(FSDirectory.open(new File(clusterInfoIndexPath)));
-        }
         
+        lambda = 1.0f - Float.parseFloat(prop.getProperty("lm.lambda", "0.4"));
         searcher = new IndexSearcher(reader);
-        clusterIdSearcher = new IndexSearcher(clusterInfoReader);
-        
-        float lambda = 1.0f - Float.parseFloat(prop.getProperty("lm.lambda", "0.4"));
         searcher.setSimilarity(new LMJelinekMercerSimilarity(lambda));
-        clusterIdSearcher.setSimilarity(new DefaultSimilarity());
         
         numWanted = Integer.parseInt(prop.getProperty("retrieve.num_wanted", "1000"));
         runName = prop.getProperty("retrieve.runname", "lm");        
         useVecSim = Boolean.parseBoolean(prop.getProperty("retrieve.vecsim", "true"));
         this.textSimWt = Float.parseFloat(prop.getProperty("simscore.textsim", "0.6"));        
+        
+        int rerankThreads = Integer.parseInt(prop.getProperty("retrieve.rerank.threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        if (rerankThreads > 1)
+            rerankPool = new ForkJoinPool(rerankThreads);
+        rerankParallelMin = Integer.parseInt(prop.getProperty("retrieve.rerank.parallel.min", "64"));
+        reopenEvery = Integer.parseInt(prop.getProperty("retrieve.reopen.every", "0"));
+        
+        int docCacheMB = Integer.parseInt(prop.getProperty("retrieve.doccache.mb", "256"));
+        if (docCacheMB > 0) {
+            docVecCache = new VecCache<>(docCacheMB*1024L*1024L, new VecCache.Weigher<DocVec>() {
+                @Override
+                public long weigh(DocVec docvec) {
+                    return docvec.getPacked().ramBytes() + 96;  // and the key and the entry
+                }
+            });
+        }
+        
+        loadIndexInfo();
+    }
+    
+    // What the document centroids and term ids were computed for, saved with the index
+    void loadIndexInfo() throws Exception {
+        indexInfo = ((DirectoryReader)reader).getIndexCommit().getUserData();
+        docCentroidsKey = null;
+        if (indexInfo.containsKey(TrecDocIndexer.INFO_CENTROIDS_SETFORMATION)) {
+            docCentroidsKey = indexInfo.get(TrecDocIndexer.INFO_CENTROIDS_SETFORMATION) + "/" +
+                    indexInfo.get(TrecDocIndexer.INFO_CENTROIDS_NUMCLUSTERS);
+        }
+        synchronized (this) {
+            termIdsUsable = false;
+            termIdsChecked = false;
+            docCentroidsUsable = false;
+            docCentroidsChecked = false;
+        }
+    }
+    
+    // Switches to the latest commit of the index if it has changed since,
+    // dropping the document vectors cached for the previous one. Called
+    // between the batches of queries by retrieveAll, when no query is
+    // running on the old reader (which is closed).
+    public boolean reopen() throws Exception {
+        DirectoryReader newReader = DirectoryReader.openIfChanged((DirectoryReader)reader);
+        if (newReader == null)
+            return false;
+        
+        IndexReader oldReader = reader;
+        IndexSearcher newSearcher = new IndexSearcher(newReader);
+        newSearcher.setSimilarity(new LMJelinekMercerSimilarity(lambda));
+        reader = newReader;
+        searcher = newSearcher;
+        readerGeneration++;
+        loadIndexInfo();
+        if (docVecCache != null)
+            docVecCache.clear();
+        oldReader.close();
+        System.out.println("Reopened the index (" + reader.maxDoc() + " documents)");
+        return true;
+    }
+    
+    // Key of the cached vectors of a document, for a set formation (-1 for
+    // the per document clusters) and number of vocabulary clusters
+    static final class DocVecKey {
+        final int docId;
+        final byte setFormation;
+        final int numClusters;
+        final int generation;
+        
+        DocVecKey(int docId, byte setFormation, int numClusters, int generation) {
+            this.docId = docId;
+            this.setFormation = setFormation;
+            this.numClusters = numClusters;
+            this.generation = generation;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof DocVecKey))
+                return false;
+            DocVecKey that = (DocVecKey)o;
+            return docId == that.docId && setFormation == that.setFormation &&
+                    numClusters == that.numClusters && generation == that.generation;
+        }
+        
+        @Override
+        public int hashCode() {
+            return ((docId*31 + setFormation)*31 + numClusters)*31 + generation;
+        }
+    }
+    
+    // Whether the centroids of the documents stored in the index are of the
+    // given set formation and number of vocabulary clusters, and of the
+    // clustering loaded (else they're computed at query time, with the
+    // cluster ids the query's words are grouped by). The doc values are got
+    // by each thread that reads them (see DocVecSimilarity), since the bytes
+    // returned by a BinaryDocValues are reused by its next get.
+    synchronized boolean hasDocCentroids(String setFormation, int numClusters) {
+        if (docCentroidsKey == null || !docCentroidsKey.equals(setFormation + "/" + numClusters))
+            return false;
+        if (docCentroidsChecked)
+            return docCentroidsUsable;
+        docCentroidsChecked = true;
+        docCentroidsUsable = WordVecs.getClusterFingerprint().equals(
+                indexInfo.get(TrecDocIndexer.INFO_CENTROIDS_CLUSTERING));
+        if (!docCentroidsUsable)
+            System.out.println("Ignoring the document centroids of the index, of a different clustering of the vocabulary");
+        return docCentroidsUsable;
+    }
+    
+    // Whether the vocabulary ids of the words of the documents are stored in
+    // the index, with the ids of the loaded vocabulary (i.e. of the same
+    // words, or some more appended since)
+    synchronized boolean hasTermIds() throws Exception {
+        if (termIdsChecked)
+            return termIdsUsable;
+        termIdsChecked = true;
+        if (!indexInfo.containsKey(TrecDocIndexer.INFO_TERMIDS_VOCABSIZE))
+            return false;
+        int vocabSize = Integer.parseInt(indexInfo.get(TrecDocIndexer.INFO_TERMIDS_VOCABSIZE));
+        if (vocabSize > WordVecs.getVocabSize() ||
+                Long.parseLong(indexInfo.get(TrecDocIndexer.INFO_TERMIDS_VOCABHASH)) != WordVecs.getVocabHash(vocabSize)) {
+            System.out.println("Ignoring the term ids of the index, of a different vocabulary");
+            return false;
+        }
+        termIdsUsable = true;
+        return true;
     }
     
     public List<TRECQuery> constructQueries() throws Exception {        
@@ -139,56 +285,116 @@ public class VecSimRetriever {
         return topWanted;
     }
     
-    public void retrieveAll() throws Exception {
-        TopScoreDocCollector collector;
-        TopDocs topDocs;
-        resultsFile = prop.getProperty("res.file");        
-        FileWriter fw = new FileWriter(resultsFile);
+    // The (reranked) results of a query; called concurrently for the
+    // queries in the parallel mode, sharing the reader, searcher and WordVecs
+    TopDocs retrieve(TRECQuery query) throws Exception {
+        // Print query
+        System.out.println(query.getLuceneQueryObj());
         
-        List<TRECQuery> queries = constructQueries();
+        // Retrieve results (100 more than numwanted giving the other ones
+        // a chance to be retrieved)
+        TopScoreDocCollector collector = TopScoreDocCollector.create(useVecSim?numWanted+100:numWanted, true);
+        searcher.search(query.getLuceneQueryObj(), collector);
+        TopDocs topDocs = collector.topDocs();
         
-        for (TRECQuery query : queries) {
-
-            // Print query
-            System.out.println(query.getLuceneQueryObj());
-            
-            // Retrieve results (100 more than numwanted giving the other ones
-            // a chance to be retrieved)
-            collector = TopScoreDocCollector.create(useVecSim?numWanted+100:numWanted, true);
-            searcher.search(query.getLuceneQueryObj(), collector);
-            topDocs = collector.topDocs();
+        TopDocs rerankedTopDocs;
+        if (!useVecSim)
+            rerankedTopDocs = topDocs;
+        else {    
+            // Compute doc-query vector based similarities
+            DocVecSimilarity dvecSim = new DocVecSimilarity(this, topDocs, query, this.textSimWt);
+            ScoreDoc[] wvecScoreDocs = dvecSim.computeSims();
             
-            TopDocs rerankedTopDocs;
-            if (!useVecSim)
-                rerankedTopDocs = topDocs;
-            else {    
-                // Compute doc-query vector based similarities
-                DocVecSimilarity dvecSim = new DocVecSimilarity(this, topDocs, query, this.textSimWt);
-                ScoreDoc[] wvecScoreDocs = dvecSim.computeSims();
-                
-                // Combine the similarity scores of the wvecs and the text
-                ScoreDoc[] combinedScoreDocs = combineSimilarities(topDocs.scoreDocs, wvecScoreDocs);
+            // Combine the similarity scores of the wvecs and the text
+            ScoreDoc[] combinedScoreDocs = combineSimilarities(topDocs.scoreDocs, wvecScoreDocs);
 
-                rerankedTopDocs = new TopDocs(
-                        numWanted, combinedScoreDocs, combinedScoreDocs[0].score);
+            rerankedTopDocs = new TopDocs(
+                    numWanted, combinedScoreDocs, combinedScoreDocs[0].score);
+        }
+        
+        System.out.println("Retrieved results for query " + query.id);
+        return rerankedTopDocs;
+    }
+    
+    public void retrieveAll() throws Exception {
+        resultsFile = prop.getProperty("res.file");        
+        int numQueryThreads = Integer.parseInt(prop.getProperty("retrieve.query.threads", "1"));
+        List<TRECQuery> queries = constructQueries();
+        long start = System.currentTimeMillis();
+        
+        try (Writer fw = new BufferedWriter(new FileWriter(resultsFile), 1 << 16)) {
+            int batchSize = reopenEvery > 0? reopenEvery : Math.max(1, queries.size());
+            for (int from = 0; from < queries.size(); from += batchSize) {
+                if (from > 0)
+                    reopen();  // the queries of the previous batch are all done
+                List<TRECQuery> batch = queries.subList(from, Math.min(queries.size(), from + batchSize));
+                if (numQueryThreads <= 1) {
+                    for (TRECQuery query : batch) {
+                        // Save results
+                        saveRetrievedTuples(fw, query, retrieve(query));
+                    }
+                }
+                else
+                    retrieveConcurrently(batch, numQueryThreads, fw);
             }
-            
-            System.out.println("Retrieved results for query " + query.id);
-
-            // Save results
-            saveRetrievedTuples(fw, query, rerankedTopDocs);
         }
+        if (docVecCache != null)
+            System.out.println("Document vector cache: " + docVecCache);
         
-        fw.close();        
-        reader.close();
-        clusterInfoReader.close();
+        long time = System.currentTimeMillis() - start;
+        System.out.println(String.format("Retrieved %d queries in %.1f s with %d query thread(s) (%.1f ms/query, %.1f queries/s)",
+                queries.size(), time/1000.0, Math.max(1, numQueryThreads),
+                queries.isEmpty()? 0 : time/(double)queries.size(),
+                time > 0? 1000.0*queries.size()/time : 0));
         
         if (Boolean.parseBoolean(prop.getProperty("eval"))) {
             evaluate();
         }
     }
+    
+    // Runs the queries on numThreads threads with at most QUERY_WINDOW
+    // queries per thread submitted ahead of the next one to be written, and
+    // writes the results in the order of the queries (i.e. the same run file
+    // as the sequential mode)
+    void retrieveConcurrently(List<TRECQuery> queries, int numThreads, Writer fw) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        int window = QUERY_WINDOW*numThreads;
+        List<Future<TopDocs>> results = new ArrayList<>(queries.size());
+        try {
+            int next = 0;  // the next query to write
+            for (final TRECQuery query : queries) {
+                results.add(executor.submit(new Callable<TopDocs>() {
+                    @Override
+                    public TopDocs call() throws Exception {
+                        return retrieve(query);
+                    }
+                }));
+                if (results.size() - next >= window) {
+                    saveRetrievedTuples(fw, queries.get(next), waitFor(results.get(next)));
+                    results.set(next++, null);
+                }
+            }
+            for (; next < queries.size(); next++)
+                saveRetrievedTuples(fw, queries.get(next), waitFor(results.get(next)));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    static TopDocs waitFor(Future<TopDocs> future) throws Exception {
+        try {
+            return future.get();
+        }
+        catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception)
+                throw (Exception)cause;
+            throw (Error)cause;
+        }
+    }
 
-    public void saveRetrievedTuples(FileWriter fw, TRECQuery query, TopDocs topDocs) throws Exception {
+    public void saveRetrievedTuples(Writer fw, TRECQuery query, TopDocs topDocs) throws Exception {
         StringBuffer buff = new StringBuffer();
         ScoreDoc[] hits = topDocs.scoreDocs;
         int len = Math.min(numWanted, hits.length);
@@ -206,6 +412,13 @@ public class VecSimRetriever {
     
     public Properties getProperties() { return prop; }
     
+    // Closes the index and stops the workers of the reranking
+    public void close() throws Exception {
+        if (rerankPool != null)
+            rerankPool.shutdown();
+        reader.close();
+    }
+    
     public void evaluate() throws Exception {
         Evaluator evaluator = new Evaluator(this.getProperties());
         evaluator.load();
@@ -221,7 +434,12 @@ public class VecSimRetriever {
         try {
             WordVecs.init(args[0]);
             VecSimRetriever searcher = new VecSimRetriever(args[0]);
-            searcher.retrieveAll();            
+            try {
+                searcher.retrieveAll();
+            }
+            finally {
+                searcher.close();
+            }
         }
         catch (Exception ex) {
             ex.printStackTrace();
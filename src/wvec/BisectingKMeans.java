@@ -0,0 +1,294 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package wvec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Bisecting spherical k-means: starting from the whole set as one cluster,
+ * the cluster with the largest dispersion (the sum of 1 - cos of its points
+ * with its centroid) is split in two with spherical 2-means, until there
+ * are k clusters. A single run thus yields a clustering for every number
+ * of clusters up to k.
+ *
+ * The clusters are numbered in the order they're created: splitting
+ * cluster p when there are c clusters leaves one half as p and makes the
+ * other half cluster c, with parent p. The clustering into c clusters is
+ * therefore got from the final labels by replacing every label l >= c by
+ * its parent until it's below c (see getCut).
+ *
+ * @author Debasis
+ */
+public class BisectingKMeans {
+    int numPoints;
+    int dimension;
+    int k;
+    float[] points;  // unit rows
+    int numThreads;
+    ForkJoinPool pool;  // shared by the 2-means of all the splits
+    long seed;
+    int maxIterations = 20;  // of each 2-means
+    float tolerance = 0.001f;
+
+    int numClusters;
+    int[] labels;
+    int[] parents;       // parents[c] = the cluster split to create c (-1 for 0)
+    int[][] members;     // point ids of each cluster
+    double[] sums;       // sum of the points of each cluster
+    double[] dispersion;
+    boolean[] unsplittable;  // the 2-means left a half empty (identical points)
+
+    File checkpointFile;
+    int checkpointEvery;
+    long pointsHash;  // see SphericalKMeans.hashPoints
+
+    // The points are normalized in place
+    public BisectingKMeans(float[] points, int numPoints, int dimension, int k, int numThreads, long seed) {
+        this.points = points;
+        this.numPoints = numPoints;
+        this.dimension = dimension;
+        this.k = Math.min(k, numPoints);
+        this.numThreads = numThreads;
+        this.seed = seed;
+        for (int i = 0; i < numPoints; i++)
+            SphericalKMeans.normalize(points, i*dimension, dimension);
+    }
+
+    public void setMaxIterations(int maxIterations) { this.maxIterations = maxIterations; }
+
+    public void setTolerance(float tolerance) { this.tolerance = tolerance; }
+
+    // Save the state to file every so many splits
+    public void setCheckpoint(File file, int everySplits) {
+        this.checkpointFile = file;
+        this.checkpointEvery = everySplits;
+        pointsHash = SphericalKMeans.hashPoints(points, numPoints, dimension);
+    }
+
+    static class Checkpoint implements Serializable {
+        private static final long serialVersionUID = 1L;
+        int numPoints, dimension, k;
+        long seed;
+        long pointsHash;
+        int numClusters;
+        int[] labels;
+        int[] parents;
+        boolean[] unsplittable;
+    }
+
+    void saveCheckpoint() throws IOException {
+        Checkpoint ckpt = new Checkpoint();
+        ckpt.numPoints = numPoints;
+        ckpt.dimension = dimension;
+        ckpt.k = k;
+        ckpt.seed = seed;
+        ckpt.pointsHash = pointsHash;
+        ckpt.numClusters = numClusters;
+        ckpt.labels = labels;
+        ckpt.parents = parents;
+        ckpt.unsplittable = unsplittable;
+
+        File tmpFile = new File(checkpointFile.getPath() + ".tmp");
+        try (ObjectOutputStream out = new ObjectOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16))) {
+            out.writeObject(ckpt);
+        }
+        Files.move(tmpFile.toPath(), checkpointFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    boolean loadCheckpoint() throws Exception {
+        if (checkpointFile == null || !checkpointFile.exists())
+            return false;
+        Checkpoint ckpt;
+        try (ObjectInputStream in = new ObjectInputStream(
+                new BufferedInputStream(new FileInputStream(checkpointFile), 1 << 16))) {
+            ckpt = (Checkpoint)in.readObject();
+        }
+        if (ckpt.numPoints != numPoints || ckpt.dimension != dimension || ckpt.k != k || ckpt.seed != seed
+                || ckpt.pointsHash != pointsHash) {
+            System.out.println("Ignoring checkpoint " + checkpointFile + " of a different clustering run");
+            return false;
+        }
+        numClusters = ckpt.numClusters;
+        labels = ckpt.labels;
+        parents = ckpt.parents;
+        unsplittable = ckpt.unsplittable;
+        System.out.println("Resuming the clustering from " + numClusters + " clusters (" + checkpointFile + ")");
+        return true;
+    }
+
+    public int[] cluster() throws Exception {
+        pool = new ForkJoinPool(numThreads);
+        try {
+            return bisect();
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    int[] bisect() throws Exception {
+        parents = new int[k];
+        unsplittable = new boolean[k];
+        if (!loadCheckpoint()) {
+            labels = new int[numPoints];
+            parents[0] = -1;
+            numClusters = 1;
+        }
+
+        // the members and sums of the clusters so far from the labels
+        members = new int[k][];
+        sums = new double[k*dimension];
+        dispersion = new double[k];
+        int[] sizes = new int[k];
+        for (int i = 0; i < numPoints; i++)
+            sizes[labels[i]]++;
+        for (int c = 0; c < numClusters; c++)
+            members[c] = new int[sizes[c]];
+        int[] fill = new int[k];
+        for (int i = 0; i < numPoints; i++)
+            members[labels[i]][fill[labels[i]]++] = i;
+
+        // the most dispersed cluster first (ties by id, so that it's deterministic)
+        PriorityQueue<Integer> queue = new PriorityQueue<>(k, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int cmp = Double.compare(dispersion[b], dispersion[a]);
+                return cmp != 0? cmp : Integer.compare(a, b);
+            }
+        });
+        for (int c = 0; c < numClusters; c++) {
+            updateSums(c);
+            if (!unsplittable[c] && members[c].length > 1)
+                queue.add(c);
+        }
+
+        long start = System.currentTimeMillis();
+        while (numClusters < k && !queue.isEmpty()) {
+            int c = queue.poll();
+            if (!split(c)) {
+                unsplittable[c] = true;
+                continue;
+            }
+            int child = numClusters++;
+            for (int id : new int[] {c, child}) {
+                if (members[id].length > 1)
+                    queue.add(id);
+            }
+            if (numClusters % 50 == 0)
+                System.out.println(String.format("%d clusters in %d s", numClusters,
+                        (System.currentTimeMillis() - start)/1000));
+            if (checkpointFile != null && checkpointEvery > 0 && numClusters % checkpointEvery == 0)
+                saveCheckpoint();
+        }
+        if (numClusters < k)
+            System.out.println("Only " + numClusters + " clusters could be formed");
+        return labels;
+    }
+
+    // Splits cluster c with 2-means into c and a new cluster numClusters
+    boolean split(int c) throws Exception {
+        int[] ids = members[c];
+        int n = ids.length;
+        float[] subset = new float[n*dimension];
+        for (int i = 0; i < n; i++)
+            System.arraycopy(points, ids[i]*dimension, subset, i*dimension, dimension);
+
+        SphericalKMeans kmeans = new SphericalKMeans(subset, n, dimension, 2, pool, seed + numClusters);
+        kmeans.setMaxIterations(maxIterations);
+        kmeans.setTolerance(tolerance);
+        kmeans.setVerbose(false);
+        int[] halves = kmeans.cluster();
+
+        int numRight = 0;
+        for (int h : halves)
+            numRight += h;
+        if (numRight == 0 || numRight == n)
+            return false;
+
+        int child = numClusters;
+        int[] left = new int[n - numRight], right = new int[numRight];
+        for (int i = 0, l = 0, r = 0; i < n; i++) {
+            if (halves[i] == 0)
+                left[l++] = ids[i];
+            else {
+                right[r++] = ids[i];
+                labels[ids[i]] = child;
+            }
+        }
+        members[c] = left;
+        members[child] = right;
+        parents[child] = c;
+        updateSums(c);
+        updateSums(child);
+        return true;
+    }
+
+    void updateSums(int c) {
+        int base = c*dimension;
+        for (int j = 0; j < dimension; j++)
+            sums[base + j] = 0;
+        for (int id : members[c]) {
+            int offset = id*dimension;
+            for (int j = 0; j < dimension; j++)
+                sums[base + j] += points[offset + j];
+        }
+        // the sum of the cosine similarities with the normalized mean is |sum|
+        double len = 0;
+        for (int j = 0; j < dimension; j++)
+            len += sums[base + j]*sums[base + j];
+        dispersion[c] = members[c].length - Math.sqrt(len);
+    }
+
+    public int getNumClusters() { return numClusters; }
+
+    public int[] getLabels() { return labels; }
+
+    public int[] getParents() { return numClusters == k? parents : Arrays.copyOf(parents, numClusters); }
+
+    // The centroids (unit rows) of the final clusters
+    public float[] getCentroids() {
+        float[] centroids = new float[numClusters*dimension];
+        for (int c = 0; c < numClusters; c++) {
+            for (int j = 0; j < dimension; j++)
+                centroids[c*dimension + j] = (float)sums[c*dimension + j];
+            SphericalKMeans.normalize(centroids, c*dimension, dimension);
+        }
+        return centroids;
+    }
+
+    // Mean similarity of the points with their centroids
+    public float getMeanSim() {
+        double sum = 0;
+        for (int c = 0; c < numClusters; c++)
+            sum += members[c].length - dispersion[c];
+        return (float)(sum/numPoints);
+    }
+
+    // The mapping of the final labels to those of the clustering into
+    // numClusters clusters (at most the number of final clusters)
+    public static int[] getCut(int[] parents, int numClusters) {
+        int[] cut = new int[parents.length];
+        for (int c = 0; c < parents.length; c++)
+            cut[c] = c < numClusters? c : cut[parents[c]];
+        return cut;
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package wvec;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The clustering of the vocabulary as a binary file: the
+ * cluster id of each word at the position of its id (the row of the
+ * word in the store, or its doc id in the wvecs index), followed by the
+ * matrix of the cluster centroids. The file records a hash of the words
+ * in id order so that it isn't used with a different vocabulary. The file
+ * is read into memory and closed when opened (it isn't mapped), so that it
+ * can be replaced while a ClusterMap of it is in use.
+ *
+ * A hierarchical clustering (see BisectingKMeans) also records the parent
+ * of each cluster, from which the clustering into any smaller number of
+ * clusters is got without another run (getClusterId(wordId, numClusters)).
+ *
+ * Words added to the vocabulary after the clustering (ids beyond size())
+ * can be put in their nearest clusters with assignNearest, which scans
+ * the centroids a block of words at a time.
+ *
+ * Layout (little endian):
+ * MAGIC | VERSION | numWords | numClusters | dimension | flags | vocabHash (long) |
+ * cluster ids (numWords ints) | centroids (numClusters x dimension floats) |
+ * parents (numClusters ints, if flags has HIERARCHICAL)
+ *
+ * @author Debasis
+ */
+public class ClusterMap {
+    static final int MAGIC = 0x5756434d;  // "WVCM"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int HIERARCHICAL = 1;
+    static final int ASSIGN_BATCH = 1024;  // words per block of the nearest centroid scan
+    static final int IO_BUFFER_SIZE = 1 << 20;
+
+    File file;
+    int numWords;
+    int numClusters;
+    int dimension;
+    long vocabHash;
+    int[] clusterIds;
+    float[] centroids;
+    int[] parents;  // null if flat
+    long fingerprint;  // see getFingerprint
+    Map<Integer, int[]> cuts = new ConcurrentHashMap<>();
+    PackedVecs packedCentroids;  // loaded on the first nearest centroid scan
+
+    public ClusterMap(File file) throws IOException {
+        this.file = file;
+        try (FileInputStream in = new FileInputStream(file);
+            FileChannel channel = in.getChannel()) {
+            ByteBuffer buff = ByteBuffer.allocate(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            fill(channel, buff, HEADER_SIZE);
+            if (buff.getInt() != MAGIC)
+                throw new IOException(file.getPath() + " is not a cluster id file");
+            if (buff.getInt() != VERSION)
+                throw new IOException("Unsupported version of " + file.getPath());
+            numWords = buff.getInt();
+            numClusters = buff.getInt();
+            dimension = buff.getInt();
+            int flags = buff.getInt();
+            vocabHash = buff.getLong();
+
+            clusterIds = new int[numWords];
+            for (int i = 0; i < numWords; ) {
+                int n = Math.min(numWords - i, IO_BUFFER_SIZE/4);
+                fill(channel, buff, 4*n);
+                buff.asIntBuffer().get(clusterIds, i, n);
+                i += n;
+            }
+            centroids = new float[numClusters*dimension];
+            for (int i = 0; i < centroids.length; ) {
+                int n = Math.min(centroids.length - i, IO_BUFFER_SIZE/4);
+                fill(channel, buff, 4*n);
+                buff.asFloatBuffer().get(centroids, i, n);
+                i += n;
+            }
+            if ((flags & HIERARCHICAL) != 0) {
+                parents = new int[numClusters];
+                for (int i = 0; i < numClusters; ) {
+                    int n = Math.min(numClusters - i, IO_BUFFER_SIZE/4);
+                    fill(channel, buff, 4*n);
+                    buff.asIntBuffer().get(parents, i, n);
+                    i += n;
+                }
+            }
+        }
+        fingerprint = computeFingerprint();
+    }
+
+    // 64-bit FNV-1a over the vocabulary hash, the numbers of words and
+    // clusters, the cluster ids, the centroids and the parents
+    long computeFingerprint() {
+        long h = 0xcbf29ce484222325L;
+        for (long v : new long[] {vocabHash, numWords, numClusters, dimension}) {
+            h ^= v;
+            h *= 0x100000001b3L;
+        }
+        for (int id : clusterIds) {
+            h ^= id;
+            h *= 0x100000001b3L;
+        }
+        for (float x : centroids) {
+            h ^= Float.floatToIntBits(x);
+            h *= 0x100000001b3L;
+        }
+        if (parents != null) {
+            for (int p : parents) {
+                h ^= p;
+                h *= 0x100000001b3L;
+            }
+        }
+        return h;
+    }
+
+    // Reads the next numBytes of the file into buff, ready to be got from
+    void fill(FileChannel channel, ByteBuffer buff, int numBytes) throws IOException {
+        buff.clear();
+        buff.limit(numBytes);
+        while (buff.hasRemaining()) {
+            if (channel.read(buff) < 0)
+                throw new IOException(file.getPath() + " is truncated");
+        }
+        buff.flip();
+    }
+
+    public int size() { return numWords; }
+
+    public int getNumClusters() { return numClusters; }
+
+    public int getDimension() { return dimension; }
+
+    public long getVocabHash() { return vocabHash; }
+
+    // Identifies the clustering: recorded along with what's computed from
+    // it (e.g. the centroids of the documents in an index), so that they
+    // aren't used after a reclustering of the same vocabulary
+    public long getFingerprint() { return fingerprint; }
+
+    public File getFile() { return file; }
+
+    public boolean isHierarchical() { return parents != null; }
+
+    public int[] getParents() { return parents; }
+
+    // Cluster id of the word with this id (-1 if not clustered)
+    public int getClusterId(int wordId) {
+        return wordId < 0 || wordId >= numWords? -1 : clusterIds[wordId];
+    }
+
+    // Cluster id of the word in the clustering into numClusters clusters; for
+    // a flat clustering (or numClusters >= getNumClusters()) the stored one
+    public int getClusterId(int wordId, int numClusters) {
+        return toCut(getClusterId(wordId), numClusters);
+    }
+
+    // Maps a stored cluster id to its ancestor in the clustering into
+    // numClusters clusters
+    public int toCut(int clusterId, int numClusters) {
+        if (clusterId < 0 || parents == null || numClusters >= this.numClusters)
+            return clusterId;
+        return getCut(numClusters)[clusterId];
+    }
+
+    int[] getCut(int numClusters) {
+        numClusters = Math.max(1, numClusters);
+        int[] cut = cuts.get(numClusters);
+        if (cut == null) {
+            cut = BisectingKMeans.getCut(parents, numClusters);
+            cuts.put(numClusters, cut);
+        }
+        return cut;
+    }
+
+    // Copies the centroid of a cluster into dst[offset, offset+dimension)
+    public void getCentroid(int clusterId, float[] dst, int offset) {
+        System.arraycopy(centroids, clusterId*dimension, dst, offset, dimension);
+    }
+
+    // All the centroids as one row-major matrix
+    public float[] getCentroids() {
+        return centroids.clone();
+    }
+
+    synchronized PackedVecs getPackedCentroids() {
+        if (packedCentroids == null) {
+            float[] cents = centroids;
+            List<WordVec> rows = new ArrayList<>(numClusters);
+            for (int c = 0; c < numClusters; c++)
+                rows.add(new WordVec(String.valueOf(c), Arrays.copyOfRange(cents, c*dimension, (c+1)*dimension)));
+            packedCentroids = new PackedVecs(rows);
+        }
+        return packedCentroids;
+    }
+
+    // The cluster (with the most similar centroid) of each of the vectors
+    public int[] assignNearest(List<WordVec> wvecs) {
+        PackedVecs cents = getPackedCentroids();
+        int n = wvecs.size();
+        int[] labels = new int[n];
+        float[] sims = null;
+        for (int from = 0; from < n; from += ASSIGN_BATCH) {
+            int to = Math.min(n, from + ASSIGN_BATCH);
+            PackedVecs batch = new PackedVecs(wvecs.subList(from, to));
+            sims = PackedVecs.simBlock(batch, cents, sims);
+            for (int i = 0; i < to - from; i++) {
+                int best = 0;
+                for (int c = 1; c < numClusters; c++) {
+                    if (sims[i*numClusters + c] > sims[i*numClusters + best])
+                        best = c;
+                }
+                labels[from + i] = best;
+            }
+        }
+        return labels;
+    }
+
+    public int assignNearest(WordVec wv) {
+        return assignNearest(Collections.singletonList(wv))[0];
+    }
+
+    // Nothing is held open once the file is read
+    public void close() throws IOException {
+    }
+
+    // 64-bit FNV-1a hash of the words in id order (of a prefix of the
+    // vocabulary if it's larger than when clustered)
+    public static long hashWords(List<String> words) {
+        long h = 0xcbf29ce484222325L;
+        for (String word : words) {
+            for (int i = 0; i < word.length(); i++) {
+                h ^= word.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            h ^= '\n';
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    public static long hashWords(Vocabulary vocab, int numWords) {
+        long h = 0xcbf29ce484222325L;
+        for (int id = 0; id < numWords; id++) {
+            for (int i = vocab.wordOffsets[id]; i < vocab.wordOffsets[id+1]; i++) {
+                h ^= vocab.chars[i];
+                h *= 0x100000001b3L;
+            }
+            h ^= '\n';
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // Writes the cluster ids of the words (in id order) and the
+    // centroids; the file appears only once complete
+    public static void write(File file, int[] clusterIds, float[] centroids,
+            int numClusters, int dimension, long vocabHash) throws IOException {
+        write(file, clusterIds, centroids, null, numClusters, dimension, vocabHash);
+    }
+
+    // Same as above, with the parents of the clusters (null if flat)
+    public static void write(File file, int[] clusterIds, float[] centroids, int[] parents,
+            int numClusters, int dimension, long vocabHash) throws IOException {
+        // written through a buffer rather than a mapping, which would keep
+        // the file open (till it's garbage collected) and so stop the move
+        // on Windows
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpFile);
+            FileChannel ch = out.getChannel()) {
+            ByteBuffer buff = ByteBuffer.allocate(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buff.putInt(MAGIC);
+            buff.putInt(VERSION);
+            buff.putInt(clusterIds.length);
+            buff.putInt(numClusters);
+            buff.putInt(dimension);
+            buff.putInt(parents != null? HIERARCHICAL : 0);
+            buff.putLong(vocabHash);
+            for (int id : clusterIds) {
+                if (!buff.hasRemaining())
+                    flush(ch, buff);
+                buff.putInt(id);
+            }
+            for (int i = 0; i < numClusters*dimension; i++) {
+                if (!buff.hasRemaining())
+                    flush(ch, buff);
+                buff.putFloat(centroids[i]);
+            }
+            if (parents != null) {
+                for (int i = 0; i < numClusters; i++) {
+                    if (!buff.hasRemaining())
+                        flush(ch, buff);
+                    buff.putInt(parents[i]);
+                }
+            }
+            flush(ch, buff);
+            ch.force(true);
+        }
+        Files.move(tmpFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static void flush(FileChannel ch, ByteBuffer buff) throws IOException {
+        buff.flip();
+        while (buff.hasRemaining())
+            ch.write(buff);
+        buff.clear();
+    }
+}
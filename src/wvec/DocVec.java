@@ -38,12 +38,24 @@ public class DocVec {
     String id;
     String text;  // Ensure that you pass a preprocessed list of tokens delimited by white spaces.
     HashMap<String, WordVec> wvecMap;
+    PackedVecs packed;
     //DBSCANClusterer<WordVec> clusterer;
     KMeansPlusPlusClusterer<WordVec> clusterer;
     
     static final float EPSILON = .001f;
     static final int MIN_PTS = 1;
     
+    // How the words of a document are grouped into a set of vectors (doc.setformation)
+    static public final byte WORDS_AS_CLUSTERS = 0;              // cluster: by vocabulary cluster
+    static public final byte ALL_WORDS_AS_SEPARATE_CLUSTERS = 1; // all: each word by itself
+    static public final byte ALL_WORDS_AS_ONE_CLUSTER = 2;       // one: all the words together
+    
+    static public byte getSetFormation(String docSetFormation) {
+        return docSetFormation.equals("cluster")? WORDS_AS_CLUSTERS:
+                docSetFormation.equals("one")?
+                ALL_WORDS_AS_ONE_CLUSTER : ALL_WORDS_AS_SEPARATE_CLUSTERS;
+    }
+    
     public DocVec(String id, String text) throws Exception {
         this.id = id;
         this.text = text;
@@ -63,6 +75,8 @@ public class DocVec {
             WordVec qwv = WordVecs.getVec(term.text());
             if (qwv != null) {
                 qwv.normalize();
+                if (WordVecs.isUnitNorm())
+                    qwv.toUnit();
                 wvecMap.put(qwv.getWord(), qwv);
             }
         }
@@ -75,20 +89,29 @@ public class DocVec {
     // we have them, because these would be cluster centre points rather
     // than individual word points.
     public DocVec(Document doc, boolean compressedIndex) {
+        BytesRef bytes = doc.getBinaryValue(TrecDocIndexer.FIELD_WORDVEC_CLUSTER_CENTRES);
+        if (bytes != null && VecSetCodec.isEncoded(bytes.bytes, bytes.offset, bytes.length)) {
+            // binary encoded (the default)... decoded straight from the stored bytes
+            packed = VecSetCodec.decode(bytes.bytes, bytes.offset, bytes.length);
+            return;
+        }
+        
         int numClusterCentres;
         wvecMap = new HashMap<>();
         String clusterCentres;
         
-        // If we are going to use per-doc clusters
-        if (!compressedIndex)
+        // Older indexes: the text of the vectors, possibly gzipped
+        if (!compressedIndex || bytes == null)
             clusterCentres = doc.get(TrecDocIndexer.FIELD_WORDVEC_CLUSTER_CENTRES);
         else
-            clusterCentres = CompressionUtils.decompress(doc.getBinaryValue(TrecDocIndexer.FIELD_WORDVEC_CLUSTER_CENTRES).bytes);
+            clusterCentres = CompressionUtils.decompress(bytes.bytes, bytes.offset, bytes.length);
 
         String[] clusterCentreVecStrings = clusterCentres.split(":");
         numClusterCentres = clusterCentreVecStrings.length;
         for (int i = 0; i < numClusterCentres; i++) {
             WordVec wv = new WordVec(clusterCentreVecStrings[i]);
+            if (WordVecs.isUnitNorm())
+                wv.toUnit();
             wvecMap.put(wv.word, wv);
         }
     }
@@ -98,6 +121,77 @@ public class DocVec {
         this.wvecMap = wvecMap;
     }
     
+    // The set already packed, e.g. the centroids decoded from the index
+    public DocVec(PackedVecs packed) {
+        this.packed = packed;
+    }
+    
+    // Groups the (distinct) words of a document as set by setFormation, with
+    // the vocabulary clusters taken at numClusters, and returns the centroid
+    // of each group keyed by "Cluster: <group id>". Words without a vector
+    // (or a cluster) are left out.
+    static public HashMap<String, WordVec> groupCentroids(Iterable<String> words,
+            byte setFormation, int numClusters) throws Exception {
+        HashMap<Integer, List<WordVec>> clusterMap = new HashMap<>();
+        int wordId = 0;
+        for (String word : words) {
+            wordId++;
+            int clusterId =
+                    setFormation==ALL_WORDS_AS_SEPARATE_CLUSTERS? wordId : // each word a new cluster id
+                    setFormation==WORDS_AS_CLUSTERS? WordVecs.getClusterId(word, numClusters): // cluster ids from vocab
+                    0; // each word the same cluster id
+            if (clusterId < 0)
+                continue;
+            
+            WordVec wv = WordVecs.getVecCached(word);
+            if (wv == null)
+                continue;
+            addToGroup(clusterMap, clusterId, wv);
+        }
+        return centroidsOf(clusterMap);
+    }
+    
+    // Same as above for the words of the document by their vocabulary ids
+    // (as stored in the forward index, see TermIdCodec)
+    static public HashMap<String, WordVec> groupCentroids(int[] wordIds,
+            byte setFormation, int numClusters) throws Exception {
+        HashMap<Integer, List<WordVec>> clusterMap = new HashMap<>();
+        for (int i = 0; i < wordIds.length; i++) {
+            int clusterId =
+                    setFormation==ALL_WORDS_AS_SEPARATE_CLUSTERS? i+1 :
+                    setFormation==WORDS_AS_CLUSTERS? WordVecs.getClusterId(wordIds[i], numClusters):
+                    0;
+            if (clusterId < 0)
+                continue;
+            
+            WordVec wv = WordVecs.getVecCached(wordIds[i]);
+            if (wv == null)
+                continue;
+            addToGroup(clusterMap, clusterId, wv);
+        }
+        return centroidsOf(clusterMap);
+    }
+    
+    static void addToGroup(HashMap<Integer, List<WordVec>> clusterMap, int clusterId, WordVec wv) {
+        List<WordVec> veclist = clusterMap.get(clusterId);
+        if (veclist == null) {
+            veclist = new ArrayList<>();
+            clusterMap.put(clusterId, veclist);
+        }
+        veclist.add(wv);
+    }
+    
+    static HashMap<String, WordVec> centroidsOf(HashMap<Integer, List<WordVec>> clusterMap) {
+        HashMap<String, WordVec> centroids = new HashMap<>();
+        for (Map.Entry<Integer, List<WordVec>> e : clusterMap.entrySet()) {
+            List<WordVec> veclist = e.getValue();
+            // a single word is its own centroid... keep it in its (possibly encoded) form
+            WordVec centroid = veclist.size() == 1? veclist.get(0) : WordVecs.getCentroid(veclist);
+            centroids.put("Cluster: " + e.getKey(), centroid);
+        }
+        return centroids;
+    }
+    
     void buildTerms() throws Exception {
         String[] tokens = text.split("\\s+");
         for (String token: tokens) {
@@ -134,26 +228,49 @@ public class DocVec {
         return clusters;
     }
     
-    public String getClusterVecs(int numClusters) throws Exception {
-        StringBuffer buff = new StringBuffer();
+    // The centres of the clusters of the words of the document
+    public List<WordVec> getClusterCentroids(int numClusters) throws Exception {
         List<CentroidCluster<WordVec>> clusters = clusterWords(numClusters);
+        List<WordVec> centroids = new ArrayList<>(clusters.size());
         int i = 0;
         
         for (CentroidCluster<WordVec> c : clusters) {
-            //List<WordVec> thisClusterPoints = c.getPoints();
-            //WordVec clusterCenter = WordVecs.getCentroid(thisClusterPoints);
             Clusterable clusterCenter = c.getCenter();
-            WordVec clusterWordVec = new WordVec("Cluster_" + i, clusterCenter.getPoint());
-            //clusterCenter.setWord("Cluster_" + numClusters);
-            buff.append(clusterWordVec.toString()).append(":");
+            centroids.add(new WordVec("Cluster_" + i, clusterCenter.getPoint()));
             i++;
         }
-        
+        return centroids;
+    }
+    
+    // The cluster centres in the text format of the older indexes
+    public String getClusterVecs(int numClusters) throws Exception {
+        StringBuffer buff = new StringBuffer();
+        for (WordVec clusterWordVec : getClusterCentroids(numClusters))
+            buff.append(clusterWordVec.toString()).append(":");
         return buff.toString();
     }
     
+    // Prepare the packed vectors for comparisons with the (possibly encoded)
+    // vocabulary vectors (see PackedVecs.prepare)
+    public void prepare(EncodedVecs encoded) {
+        getPacked().prepare(encoded);
+    }
+    
+    // The vectors packed in a matrix for the set similarities, built on the
+    // first call (i.e. once per query for the query vectors)
+    public synchronized PackedVecs getPacked() {
+        if (packed == null)
+            packed = new PackedVecs(getWordVecs());
+        return packed;
+    }
+    
     public List<WordVec> getWordVecs() {
         List<WordVec> wvList = new ArrayList<>();
+        if (wvecMap == null) {
+            for (int i = 0; i < packed.size(); i++)
+                wvList.add(packed.getVec(i));
+            return wvList;
+        }
         for (Entry<String, WordVec> e : wvecMap.entrySet()) {
             wvList.add(e.getValue());
         }
@@ -0,0 +1,35 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package wvec;
+
+/**
+ * A matrix of word vectors kept in some compressed form. The similarity
+ * kernels work directly on the encoded rows, either between two rows or
+ * between a float vector and a row.
+ *
+ * @author Debasis
+ */
+public interface EncodedVecs {
+
+    public int getDimension();
+
+    // Encodes vec[offset, offset+dimension) into the given row
+    public void set(int row, float[] vec, int offset);
+
+    // The (approximate) i-th component of a row
+    public float get(int row, int i);
+
+    // Dot product of two rows
+    public float dot(int row, int thatRow);
+
+    // Dot product of a float vector (q[offset, offset+dimension)) with a row
+    public float dot(float[] q, int offset, int row);
+
+    // acc[offset+i] += scale * row[i]
+    public void addTo(int row, float[] acc, int offset, float scale);
+
+    public long ramBytes();
+}
@@ -0,0 +1,621 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package wvec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Hierarchical Navigable Small World graph over the vectors of a
+ * Vocabulary for approximate k-NN (cosine similarity) lookups. Nodes
+ * are the word ids; each node has at most M links on the upper layers
+ * and 2M on the bottom one, chosen with the neighbour selection
+ * heuristic (a candidate is skipped if it's closer to an already
+ * selected neighbour than to the node). The graph is built by inserting
+ * the words in parallel, with the link lists guarded by striped locks.
+ *
+ * @author Debasis
+ */
+public class HNSWIndex {
+    static final int MAGIC = 0x484e5357;  // "HNSW"
+    static final int VERSION = 1;
+    static final int NUM_LOCKS = 1024;
+
+    Vocabulary vocab;
+    int dimension;
+    int numNodes;
+    int M;
+    int maxM0;
+    int efConstruction;
+
+    int[] levels;
+    int[] links0;  // node*(maxM0+1): #links followed by the links on layer 0
+    int[][] upperLinks;  // per node, (level-1)*(M+1): #links and links for layers 1..level
+    int entryPoint = -1;
+    int maxLevel = -1;
+
+    final Object entryLock = new Object();
+    final Object[] locks;
+    volatile boolean building;
+
+    ThreadLocal<Searcher> searchers = new ThreadLocal<Searcher>() {
+        @Override
+        protected Searcher initialValue() { return new Searcher(); }
+    };
+
+    public HNSWIndex(Vocabulary vocab, int M, int efConstruction) {
+        this.vocab = vocab;
+        this.dimension = vocab.getDimension();
+        this.numNodes = vocab.size();
+        this.M = M;
+        this.maxM0 = 2*M;
+        this.efConstruction = Math.max(efConstruction, M);
+        locks = new Object[NUM_LOCKS];
+        for (int i = 0; i < NUM_LOCKS; i++)
+            locks[i] = new Object();
+    }
+
+    public int size() { return numNodes; }
+
+    public int getM() { return M; }
+
+    public int getEfConstruction() { return efConstruction; }
+
+    // A binary heap on float keys (the largest on top) with int values
+    static class Heap {
+        float[] keys;
+        int[] ids;
+        int size;
+
+        Heap(int capacity) {
+            keys = new float[capacity];
+            ids = new int[capacity];
+        }
+
+        void clear() { size = 0; }
+
+        void push(float key, int id) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size*2);
+                ids = Arrays.copyOf(ids, size*2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i-1) >>> 1;
+                if (keys[parent] >= key)
+                    break;
+                keys[i] = keys[parent];
+                ids[i] = ids[parent];
+                i = parent;
+            }
+            keys[i] = key;
+            ids[i] = id;
+        }
+
+        float topKey() { return keys[0]; }
+
+        int topId() { return ids[0]; }
+
+        void pop() {
+            float key = keys[--size];
+            int id = ids[size];
+            int i = 0, half = size >>> 1;
+            while (i < half) {
+                int child = 2*i + 1;
+                if (child+1 < size && keys[child+1] > keys[child])
+                    child++;
+                if (key >= keys[child])
+                    break;
+                keys[i] = keys[child];
+                ids[i] = ids[child];
+                i = child;
+            }
+            keys[i] = key;
+            ids[i] = id;
+        }
+    }
+
+    // Per thread search state
+    class Searcher {
+        int[] visited = new int[numNodes];
+        int tag;
+        Heap candidates = new Heap(64);  // by similarity
+        Heap results = new Heap(64);     // by negated similarity, i.e. the worst on top
+        float[] query = new float[dimension];
+        int[] neighbours = new int[maxM0+1];
+        float[] sims = new float[64];
+        int[] ids = new int[64];
+
+        void nextTag() {
+            if (++tag == 0) {
+                Arrays.fill(visited, 0);
+                tag = 1;
+            }
+        }
+    }
+
+    // Length of the stored vector of a word
+    float length(int id) {
+        return vocab.unitNorm? 1 : vocab.norms[id];
+    }
+
+    // Similarity of a unit query vector with a word
+    float sim(float[] q, int id) {
+        float len = length(id);
+        if (len == 0)
+            return 0;
+        float dot = vocab.encoded != null?
+                vocab.encoded.dot(q, 0, id) :
+                VecMath.dot(q, 0, vocab.vecs, id*dimension, dimension);
+        return dot/len;
+    }
+
+    float sim(int a, int b) {
+        float len = length(a)*length(b);
+        if (len == 0)
+            return 0;
+        float dot = vocab.encoded != null?
+                vocab.encoded.dot(a, b) :
+                VecMath.dot(vocab.vecs, a*dimension, vocab.vecs, b*dimension, dimension);
+        return dot/len;
+    }
+
+    // The unit vector of a word
+    void unitVec(int id, float[] q) {
+        if (vocab.encoded != null) {
+            for (int i = 0; i < dimension; i++)
+                q[i] = vocab.encoded.get(id, i);
+        }
+        else
+            System.arraycopy(vocab.vecs, id*dimension, q, 0, dimension);
+        toUnit(q);
+    }
+
+    static void toUnit(float[] q) {
+        float len = (float)Math.sqrt(VecMath.dot(q, 0, q, 0, q.length));
+        if (len > 0) {
+            for (int i = 0; i < q.length; i++)
+                q[i] /= len;
+        }
+    }
+
+    // Copies the links of a node on a layer into dst (#links first)
+    void getLinks(int node, int level, int[] dst) {
+        if (building) {
+            synchronized (locks[node & (NUM_LOCKS-1)]) {
+                copyLinks(node, level, dst);
+            }
+        }
+        else
+            copyLinks(node, level, dst);
+    }
+
+    int[] linksOf(int node, int level) {
+        return level == 0? links0 : upperLinks[node];
+    }
+
+    int linksBase(int node, int level) {
+        return level == 0? node*(maxM0+1) : (level-1)*(M+1);
+    }
+
+    void copyLinks(int node, int level, int[] dst) {
+        int[] links = linksOf(node, level);
+        int base = linksBase(node, level);
+        System.arraycopy(links, base, dst, 0, links[base]+1);
+    }
+
+    void setLinks(int node, int level, int[] src, int num) {
+        int[] links = linksOf(node, level);
+        int base = linksBase(node, level);
+        System.arraycopy(src, 0, links, base+1, num);
+        links[base] = num;
+    }
+
+    // Greedy walk to the most similar node on a layer
+    int greedy(Searcher s, float[] q, int ep, int level) {
+        float best = sim(q, ep);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            getLinks(ep, level, s.neighbours);
+            int num = s.neighbours[0];
+            for (int i = 1; i <= num; i++) {
+                int e = s.neighbours[i];
+                float sim = sim(q, e);
+                if (sim > best) {
+                    best = sim;
+                    ep = e;
+                    changed = true;
+                }
+            }
+        }
+        return ep;
+    }
+
+    // Beam search on a layer, leaves the (at most ef) nearest in s.results
+    void searchLayer(Searcher s, float[] q, int ep, int ef, int level) {
+        s.nextTag();
+        s.candidates.clear();
+        s.results.clear();
+        float sim = sim(q, ep);
+        s.visited[ep] = s.tag;
+        s.candidates.push(sim, ep);
+        s.results.push(-sim, ep);
+
+        while (s.candidates.size > 0) {
+            float csim = s.candidates.topKey();
+            int c = s.candidates.topId();
+            if (s.results.size >= ef && csim < -s.results.topKey())
+                break;
+            s.candidates.pop();
+
+            getLinks(c, level, s.neighbours);
+            int num = s.neighbours[0];
+            for (int i = 1; i <= num; i++) {
+                int e = s.neighbours[i];
+                if (s.visited[e] == s.tag)
+                    continue;
+                s.visited[e] = s.tag;
+                sim = sim(q, e);
+                if (s.results.size < ef || sim > -s.results.topKey()) {
+                    s.candidates.push(sim, e);
+                    s.results.push(-sim, e);
+                    if (s.results.size > ef)
+                        s.results.pop();
+                }
+            }
+        }
+    }
+
+    // Moves the results into s.ids/s.sims in decreasing order of similarity
+    int drainResults(Searcher s) {
+        int num = s.results.size;
+        if (s.ids.length < num) {
+            s.ids = new int[num];
+            s.sims = new float[num];
+        }
+        for (int i = num-1; i >= 0; i--) {
+            s.sims[i] = -s.results.topKey();
+            s.ids[i] = s.results.topId();
+            s.results.pop();
+        }
+        return num;
+    }
+
+    // Selects at most maxLinks of the candidates (in decreasing order of
+    // similarity to the base node) into selected, returns how many. The
+    // free slots left by the heuristic are filled up with the nearest of
+    // the skipped candidates, which keeps fewer nodes without incoming links.
+    int selectNeighbours(int[] ids, float[] sims, int num, int maxLinks, int[] selected) {
+        int numSelected = 0, numSkipped = 0;
+        int[] skipped = new int[num];
+        for (int i = 0; i < num && numSelected < maxLinks; i++) {
+            int c = ids[i];
+            boolean keep = true;
+            for (int j = 0; j < numSelected; j++) {
+                if (sim(c, selected[j]) > sims[i]) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep)
+                selected[numSelected++] = c;
+            else
+                skipped[numSkipped++] = c;
+        }
+        for (int i = 0; i < numSkipped && numSelected < maxLinks; i++)
+            selected[numSelected++] = skipped[i];
+        return numSelected;
+    }
+
+    // Adds a link from node to newNode on a layer, pruning the links if full
+    void addLink(int node, int newNode, int level) {
+        int maxLinks = level == 0? maxM0 : M;
+        synchronized (locks[node & (NUM_LOCKS-1)]) {
+            int[] links = linksOf(node, level);
+            int base = linksBase(node, level);
+            int num = links[base];
+            if (num < maxLinks) {
+                links[base+num+1] = newNode;
+                links[base] = num+1;
+                return;
+            }
+
+            // rank the existing links and the new one by their similarity to the node
+            int[] ids = new int[num+1];
+            float[] sims = new float[num+1];
+            System.arraycopy(links, base+1, ids, 0, num);
+            ids[num] = newNode;
+            for (int i = 0; i <= num; i++)
+                sims[i] = sim(node, ids[i]);
+            sortBySim(ids, sims, num+1);
+
+            int[] selected = new int[maxLinks];
+            int numSelected = selectNeighbours(ids, sims, num+1, maxLinks, selected);
+            setLinks(node, level, selected, numSelected);
+        }
+    }
+
+    static void sortBySim(int[] ids, float[] sims, int num) {
+        // insertion sort, the lists are short
+        for (int i = 1; i < num; i++) {
+            float sim = sims[i];
+            int id = ids[i];
+            int j = i-1;
+            while (j >= 0 && sims[j] < sim) {
+                sims[j+1] = sims[j];
+                ids[j+1] = ids[j];
+                j--;
+            }
+            sims[j+1] = sim;
+            ids[j+1] = id;
+        }
+    }
+
+    void insert(int id) {
+        Searcher s = searchers.get();
+        float[] q = s.query;
+        unitVec(id, q);
+        int level = levels[id];
+
+        int ep, topLevel;
+        synchronized (entryLock) {
+            ep = entryPoint;
+            topLevel = maxLevel;
+            if (ep < 0) {
+                entryPoint = id;
+                maxLevel = level;
+                return;
+            }
+        }
+
+        for (int l = topLevel; l > level; l--)
+            ep = greedy(s, q, ep, l);
+
+        int[] selected = new int[maxM0];
+        for (int l = Math.min(level, topLevel); l >= 0; l--) {
+            searchLayer(s, q, ep, efConstruction, l);
+            int num = drainResults(s);
+            int maxLinks = l == 0? maxM0 : M;
+            int numSelected = selectNeighbours(s.ids, s.sims, num, maxLinks, selected);
+            synchronized (locks[id & (NUM_LOCKS-1)]) {
+                setLinks(id, l, selected, numSelected);
+            }
+            for (int i = 0; i < numSelected; i++)
+                addLink(selected[i], id, l);
+            ep = s.ids[0];
+        }
+
+        if (level > topLevel) {
+            synchronized (entryLock) {
+                if (level > maxLevel) {
+                    maxLevel = level;
+                    entryPoint = id;
+                }
+            }
+        }
+    }
+
+    public void build(int numThreads) throws Exception {
+        // draw the levels up front so that the link lists can be allocated
+        Random random = new Random(numNodes);
+        double levelMult = 1/Math.log(M);
+        levels = new int[numNodes];
+        links0 = new int[numNodes*(maxM0+1)];
+        upperLinks = new int[numNodes][];
+        for (int i = 0; i < numNodes; i++) {
+            levels[i] = (int)(-Math.log(1 - random.nextDouble())*levelMult);
+            if (levels[i] > 0)
+                upperLinks[i] = new int[levels[i]*(M+1)];
+        }
+
+        building = true;
+        final AtomicInteger next = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<Void>> workers = new ArrayList<>();
+        try {
+            insert(next.getAndIncrement());
+            for (int t = 0; t < numThreads; t++) {
+                workers.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        int id;
+                        while ((id = next.getAndIncrement()) < numNodes) {
+                            insert(id);
+                            if (id % 100000 == 0)
+                                System.out.println("Inserted " + id + " words in the HNSW graph");
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> worker : workers)
+                worker.get();
+        }
+        finally {
+            executor.shutdownNow();
+            building = false;
+        }
+    }
+
+    // The (approximate) k nearest words of a query vector in the space of
+    // the vocabulary vectors. Fills ids and sims in decreasing order of
+    // similarity, returns the number found.
+    public int search(float[] query, int k, int efSearch, int[] ids, float[] sims) {
+        if (entryPoint < 0)
+            return 0;
+        Searcher s = searchers.get();
+        float[] q = s.query;
+        System.arraycopy(query, 0, q, 0, dimension);
+        toUnit(q);
+
+        int ep = entryPoint;
+        for (int l = maxLevel; l > 0; l--)
+            ep = greedy(s, q, ep, l);
+        searchLayer(s, q, ep, Math.max(efSearch, k), 0);
+        int num = drainResults(s);
+        num = Math.min(num, k);
+        System.arraycopy(s.ids, 0, ids, 0, num);
+        System.arraycopy(s.sims, 0, sims, 0, num);
+        return num;
+    }
+
+    // Exact k nearest words by a scan over the vocabulary (for evaluating the graph)
+    public int bruteForce(float[] query, int k, int[] ids, float[] sims) {
+        float[] q = Arrays.copyOf(query, dimension);
+        toUnit(q);
+        Heap results = new Heap(k+1);
+        for (int id = 0; id < numNodes; id++) {
+            float sim = sim(q, id);
+            if (results.size < k || sim > -results.topKey()) {
+                results.push(-sim, id);
+                if (results.size > k)
+                    results.pop();
+            }
+        }
+        int num = results.size;
+        for (int i = num-1; i >= 0; i--) {
+            sims[i] = -results.topKey();
+            ids[i] = results.topId();
+            results.pop();
+        }
+        return num;
+    }
+
+    public void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(numNodes);
+            out.writeInt(dimension);
+            out.writeInt(M);
+            out.writeInt(efConstruction);
+            out.writeInt(entryPoint);
+            out.writeInt(maxLevel);
+            for (int i = 0; i < numNodes; i++)
+                out.writeInt(levels[i]);
+            for (int i = 0; i < links0.length; i++)
+                out.writeInt(links0[i]);
+            for (int i = 0; i < numNodes; i++) {
+                if (upperLinks[i] == null)
+                    continue;
+                for (int x : upperLinks[i])
+                    out.writeInt(x);
+            }
+        }
+    }
+
+    // Returns null if the graph wasn't built over a vocabulary of this size
+    public static HNSWIndex load(File file, Vocabulary vocab) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException(file.getPath() + " is not an HNSW index file");
+            int numNodes = in.readInt(), dimension = in.readInt();
+            if (numNodes != vocab.size() || dimension != vocab.getDimension())
+                return null;
+
+            HNSWIndex index = new HNSWIndex(vocab, in.readInt(), in.readInt());
+            index.entryPoint = in.readInt();
+            index.maxLevel = in.readInt();
+            index.levels = new int[numNodes];
+            for (int i = 0; i < numNodes; i++)
+                index.levels[i] = in.readInt();
+            index.links0 = new int[numNodes*(index.maxM0+1)];
+            for (int i = 0; i < index.links0.length; i++)
+                index.links0[i] = in.readInt();
+            index.upperLinks = new int[numNodes][];
+            for (int i = 0; i < numNodes; i++) {
+                if (index.levels[i] == 0)
+                    continue;
+                int[] links = new int[index.levels[i]*(index.M+1)];
+                for (int j = 0; j < links.length; j++)
+                    links[j] = in.readInt();
+                index.upperLinks[i] = links;
+            }
+            return index;
+        }
+    }
+
+    // Recall@k of the graph against a brute force scan, and the
+    // latencies of both, for a range of efSearch values.
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("usage: java HNSWIndex <prop-file> [k] [#queries]");
+            return;
+        }
+        try {
+            Properties prop = new Properties();
+            prop.load(new FileReader(args[0]));
+            int k = args.length > 1? Integer.parseInt(args[1]) : 10;
+            int numQueries = args.length > 2? Integer.parseInt(args[2]) : 500;
+
+            WordVecs.init(prop);
+            long start = System.currentTimeMillis();
+            HNSWIndex index = WordVecs.getKnnIndex();
+            System.out.println("HNSW graph ready in " + (System.currentTimeMillis() - start) + " ms");
+            Vocabulary vocab = WordVecs.getVocabulary();
+
+            Random random = new Random(1);
+            float[][] queries = new float[numQueries][vocab.getDimension()];
+            int[][] truth = new int[numQueries][k];
+            float[] sims = new float[k];
+            start = System.nanoTime();
+            for (int i = 0; i < numQueries; i++) {
+                index.unitVec(random.nextInt(vocab.size()), queries[i]);
+                index.bruteForce(queries[i], k, truth[i], sims);
+            }
+            double bruteMs = (System.nanoTime() - start)/1e6/numQueries;
+
+            StringBuffer buff = new StringBuffer();
+            buff.append(String.format("%-10s%-12s%-12s\n", "efSearch", "recall@" + k, "ms/query"));
+            buff.append(String.format("%-10s%-12.4f%-12.3f\n", "exact", 1.0, bruteMs));
+            int[] ids = new int[k];
+            for (int ef : new int[] {k, 2*k, 50, 100, 200, 400, 800}) {
+                if (ef < k)
+                    continue;
+                int found = 0;
+                start = System.nanoTime();
+                for (int i = 0; i < numQueries; i++) {
+                    int num = index.search(queries[i], k, ef, ids, sims);
+                    for (int a = 0; a < num; a++) {
+                        for (int b = 0; b < k; b++) {
+                            if (ids[a] == truth[i][b]) {
+                                found++;
+                                break;
+                            }
+                        }
+                    }
+                }
+                double ms = (System.nanoTime() - start)/1e6/numQueries;
+                buff.append(String.format("%-10d%-12.4f%-12.3f\n", ef, found/(double)(numQueries*k), ms));
+            }
+            System.out.println(buff.toString());
+            WordVecs.close();
+        }
+        catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+}
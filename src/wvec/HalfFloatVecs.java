@@ -0,0 +1,127 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package wvec;
+
+/**
+ * Word vectors stored as IEEE 754 half precision (fp16) floats, i.e.
+ * 2 bytes per component. Decoding is a lookup in a 64K entry table.
+ *
+ * @author Debasis
+ */
+public class HalfFloatVecs implements EncodedVecs {
+    int dimension;
+    short[] halfs;
+
+    static final float[] HALF_TO_FLOAT = new float[1 << 16];
+    static {
+        for (int h = 0; h < HALF_TO_FLOAT.length; h++)
+            HALF_TO_FLOAT[h] = toFloat((short)h);
+    }
+
+    public HalfFloatVecs(int numRows, int dimension) {
+        this.dimension = dimension;
+        halfs = new short[numRows*dimension];
+    }
+
+    static float toFloat(short half) {
+        int h = half & 0xFFFF;
+        int sign = (h >>> 15) << 31;
+        int exp = (h >>> 10) & 0x1F;
+        int mantissa = h & 0x3FF;
+
+        if (exp == 0) {
+            // zero or subnormal
+            float f = mantissa * (1f / (1 << 24));
+            return sign == 0? f : -f;
+        }
+        if (exp == 31)  // inf or nan
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        return Float.intBitsToFloat(sign | ((exp - 15 + 127) << 23) | (mantissa << 13));
+    }
+
+    // Round to nearest even
+    static short toHalf(float f) {
+        int bits = Float.floatToIntBits(f);
+        int sign = (bits >>> 16) & 0x8000;
+        int exp = ((bits >>> 23) & 0xFF) - 127 + 15;
+        int mantissa = bits & 0x7FFFFF;
+
+        if (exp >= 31) {
+            if (((bits >>> 23) & 0xFF) == 0xFF && mantissa != 0)
+                return (short)(sign | 0x7E00);  // nan
+            return (short)(sign | 0x7C00);  // overflow to inf
+        }
+        if (exp <= 0) {
+            if (exp < -10)
+                return (short)sign;  // underflow to zero
+            // subnormal
+            mantissa |= 0x800000;
+            int shift = 14 - exp;
+            int half = mantissa >> shift;
+            int rest = mantissa & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+            if (rest > halfway || (rest == halfway && (half & 1) == 1))
+                half++;
+            return (short)(sign | half);
+        }
+        int half = (exp << 10) | (mantissa >> 13);
+        int rest = mantissa & 0x1FFF;
+        if (rest > 0x1000 || (rest == 0x1000 && (half & 1) == 1))
+            half++;  // may carry into the exponent, which is still correct
+        return (short)(sign | half);
+    }
+
+    @Override
+    public int getDimension() { return dimension; }
+
+    @Override
+    public void set(int row, float[] vec, int offset) {
+        int base = row*dimension;
+        for (int i = 0; i < dimension; i++)
+            halfs[base+i] = toHalf(vec[offset+i]);
+    }
+
+    @Override
+    public float get(int row, int i) {
+        return HALF_TO_FLOAT[halfs[row*dimension+i] & 0xFFFF];
+    }
+
+    @Override
+    public float dot(int row, int thatRow) {
+        short[] h = halfs;
+        float[] t = HALF_TO_FLOAT;
+        int a = row*dimension, b = thatRow*dimension;
+        float sum = 0;
+        for (int i = 0; i < dimension; i++)
+            sum += t[h[a+i] & 0xFFFF] * t[h[b+i] & 0xFFFF];
+        return sum;
+    }
+
+    @Override
+    public float dot(float[] q, int offset, int row) {
+        short[] h = halfs;
+        float[] t = HALF_TO_FLOAT;
+        int b = row*dimension;
+        float sum = 0;
+        for (int i = 0; i < dimension; i++)
+            sum += q[offset+i] * t[h[b+i] & 0xFFFF];
+        return sum;
+    }
+
+    @Override
+    public void addTo(int row, float[] acc, int offset, float scale) {
+        short[] h = halfs;
+        float[] t = HALF_TO_FLOAT;
+        int b = row*dimension;
+        for (int i = 0; i < dimension; i++)
+            acc[offset+i] += scale * t[h[b+i] & 0xFFFF];
+    }
+
+    @Override
+    public long ramBytes() {
+        return 2L*halfs.length;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package wvec;
+
+/**
+ * Word vectors scalar quantized to 8 bits per component. Each row r is
+ * stored as unsigned byte codes c with its own offset and scale, i.e.
+ * x[i] ~ min[r] + scale[r]*c[i]. The dot product of two rows expands to
+ * an integer dot product of the codes plus terms involving the (stored)
+ * sums of the codes, so the inner loop runs on ints only.
+ *
+ * @author Debasis
+ */
+public class Int8Vecs implements EncodedVecs {
+    int dimension;
+    byte[] codes;
+    float[] mins;
+    float[] scales;
+    int[] codeSums;
+
+    public Int8Vecs(int numRows, int dimension) {
+        this.dimension = dimension;
+        codes = new byte[numRows*dimension];
+        mins = new float[numRows];
+        scales = new float[numRows];
+        codeSums = new int[numRows];
+    }
+
+    @Override
+    public int getDimension() { return dimension; }
+
+    @Override
+    public void set(int row, float[] vec, int offset) {
+        float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+        for (int i = offset; i < offset+dimension; i++) {
+            min = Math.min(min, vec[i]);
+            max = Math.max(max, vec[i]);
+        }
+        float scale = max > min? (max - min)/255 : 1;
+        int base = row*dimension, sum = 0;
+        for (int i = 0; i < dimension; i++) {
+            int c = Math.round((vec[offset+i] - min)/scale);
+            c = Math.max(0, Math.min(255, c));
+            codes[base+i] = (byte)c;
+            sum += c;
+        }
+        mins[row] = min;
+        scales[row] = scale;
+        codeSums[row] = sum;
+    }
+
+    @Override
+    public float get(int row, int i) {
+        return mins[row] + scales[row]*(codes[row*dimension+i] & 0xFF);
+    }
+
+    @Override
+    public float dot(int row, int thatRow) {
+        byte[] c = codes;
+        int a = row*dimension, b = thatRow*dimension;
+        int sum = 0;
+        for (int i = 0; i < dimension; i++)
+            sum += (c[a+i] & 0xFF) * (c[b+i] & 0xFF);
+
+        float amin = mins[row], bmin = mins[thatRow];
+        float ascale = scales[row], bscale = scales[thatRow];
+        return dimension*amin*bmin + amin*bscale*codeSums[thatRow] +
+                bmin*ascale*codeSums[row] + ascale*bscale*sum;
+    }
+
+    @Override
+    public float dot(float[] q, int offset, int row) {
+        byte[] c = codes;
+        int b = row*dimension;
+        float qsum = 0, sum = 0;
+        for (int i = 0; i < dimension; i++) {
+            float qi = q[offset+i];
+            qsum += qi;
+            sum += qi * (c[b+i] & 0xFF);
+        }
+        return mins[row]*qsum + scales[row]*sum;
+    }
+
+    @Override
+    public void addTo(int row, float[] acc, int offset, float scale) {
+        int b = row*dimension;
+        float min = mins[row]*scale, s = scales[row]*scale;
+        for (int i = 0; i < dimension; i++)
+            acc[offset+i] += min + s*(codes[b+i] & 0xFF);
+    }
+
+    @Override
+    public long ramBytes() {
+        return codes.length + 12L*mins.length;
+    }
+}
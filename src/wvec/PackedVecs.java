@@ -0,0 +1,345 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package wvec;
+
+import java.util.List;
+
+/**
+ * A set of word vectors packed as the unit length rows of one row-major
+ * float matrix, so that the cosine similarities between two sets are
+ * the entries of the matrix product A.B^T. The product is computed
+ * block by block (so that the rows of both blocks stay in cache) with
+ * a 2x2 register tile (so that each component loaded is used twice).
+ *
+ * The words of a product quantized vocabulary (see ProductQuantizer) are
+ * kept as their codes, m bytes a row, after the float rows (and so in
+ * the document cache too). Their similarity with a float row is m
+ * lookups in the asymmetric distance table of that row, if it has been
+ * prepared (i.e. for the query vectors, see prepare), else computed from
+ * the codes; the coded rows are decoded to be compared with one another.
+ *
+ * @author Debasis
+ */
+public class PackedVecs {
+    static final int BLOCK = 32;  // rows of either set per block
+
+    int numRows;
+    int dimension;
+    int numFloat;  // rows [0, numFloat) are floats, [numFloat, numRows) PQ codes
+    float[] rows;  // numFloat x dimension
+    ProductQuantizer pq;  // of the coded rows (null if none)
+    byte[] codes;         // (numRows - numFloat) x m
+    float[] codeScales;   // 1/length of the decoded rows, so that they're of unit length too
+    volatile AdcTables adcTables;  // of the float rows, see prepare
+    String[] words;
+    float intraSimSum = Float.NaN;  // computed on demand
+    float[] rowSum;  // computed on demand
+
+    // The asymmetric distance tables of the float rows for a quantizer,
+    // getTableSize() entries a row
+    static class AdcTables {
+        final ProductQuantizer pq;
+        final float[] tables;
+
+        AdcTables(ProductQuantizer pq, float[] tables) {
+            this.pq = pq;
+            this.tables = tables;
+        }
+    }
+
+    public PackedVecs(List<WordVec> wvecs) {
+        numRows = wvecs.size();
+        dimension = numRows == 0? 0 : wvecs.get(0).getDimension();
+        for (WordVec wv : wvecs) {
+            if (pq == null && wv.enc instanceof ProductQuantizer)
+                pq = (ProductQuantizer)wv.enc;
+        }
+        int numCoded = 0;
+        for (WordVec wv : wvecs) {
+            if (pq != null && wv.enc == pq)
+                numCoded++;
+        }
+        numFloat = numRows - numCoded;
+        rows = new float[numFloat*dimension];
+        words = new String[numRows];
+        if (numCoded > 0) {
+            codes = new byte[numCoded*pq.getNumSubspaces()];
+            codeScales = new float[numCoded];
+        }
+        int i = 0, c = numFloat;
+        for (WordVec wv : wvecs) {
+            if (pq != null && wv.enc == pq) {
+                words[c] = wv.getWord();
+                int ci = c++ - numFloat;
+                pq.getCodes(wv.row, codes, ci*pq.getNumSubspaces());
+                float len = (float)Math.sqrt(pq.dot(wv.row, wv.row));
+                codeScales[ci] = len > 0? 1/len : 1;
+                continue;
+            }
+            words[i] = wv.getWord();
+            int base = i++*dimension;
+            for (int j = 0; j < dimension; j++)
+                rows[base+j] = wv.raw(j);
+            float len = (float)Math.sqrt(VecMath.dot(rows, base, rows, base, dimension));
+            if (len > 0) {
+                for (int j = 0; j < dimension; j++)
+                    rows[base+j] /= len;
+            }
+        }
+    }
+
+    // Packs the given rows (normalized in place), e.g. as decoded from the
+    // index, where there are no words
+    public PackedVecs(float[] rows, int numRows, int dimension) {
+        this.rows = rows;
+        this.numRows = numRows;
+        this.numFloat = numRows;
+        this.dimension = dimension;
+        for (int i = 0; i < numRows; i++) {
+            int base = i*dimension;
+            float len = (float)Math.sqrt(VecMath.dot(rows, base, rows, base, dimension));
+            if (len > 0) {
+                for (int j = 0; j < dimension; j++)
+                    rows[base+j] /= len;
+            }
+        }
+    }
+
+    public int size() { return numRows; }
+
+    public int getDimension() { return dimension; }
+
+    public String getWord(int i) { return words == null? null : words[i]; }
+
+    // Estimated bytes taken up (the rows, the codes, and the words with
+    // their headers)
+    public long ramBytes() {
+        long bytes = 4L*rows.length + 64;
+        if (codes != null)
+            bytes += codes.length + 4L*codeScales.length + 32;
+        AdcTables adc = adcTables;
+        if (adc != null)
+            bytes += 4L*adc.tables.length + 32;
+        if (words != null) {
+            for (String word : words)
+                bytes += 8 + (word == null? 0 : 40 + 2L*word.length());
+        }
+        return bytes;
+    }
+
+    // A (unit length) view of row i (a decoded copy for a coded row)
+    public WordVec getVec(int i) {
+        if (i < numFloat)
+            return new WordVec(getWord(i), rows, i*dimension, dimension, 1, true, -1);
+        float[] decoded = new float[dimension];
+        int c = i - numFloat;
+        pq.addTo(codes, c*pq.getNumSubspaces(), decoded, 0, codeScales[c]);
+        return new WordVec(getWord(i), decoded, 0, dimension, 1, true, -1);
+    }
+
+    // Precomputes the asymmetric distance table of each float row if the
+    // vectors these are going to be compared with are product quantized,
+    // e.g. once per query for the query vectors
+    public void prepare(EncodedVecs encoded) {
+        if (!(encoded instanceof ProductQuantizer))
+            return;
+        ProductQuantizer quantizer = (ProductQuantizer)encoded;
+        AdcTables adc = adcTables;
+        if (adc != null && adc.pq == quantizer)
+            return;
+        int size = quantizer.getTableSize();
+        float[] tables = new float[numFloat*size];
+        for (int i = 0; i < numFloat; i++)
+            quantizer.buildTable(rows, i*dimension, tables, i*size);
+        adcTables = new AdcTables(quantizer, tables);
+    }
+
+    // The cosine similarities of every row of a with every row of b:
+    // sims[i*b.size() + j] = cos(a_i, b_j). Reuses sims if large enough.
+    public static float[] simBlock(PackedVecs a, PackedVecs b, float[] sims) {
+        int na = a.numRows, nb = b.numRows;
+        if (sims == null || sims.length < na*nb)
+            sims = new float[na*nb];
+        tile(a.rows, a.numFloat, b.rows, b.numFloat, a.dimension, sims, 0, nb);
+        if (b.numFloat < nb)
+            codedColumns(a, b, sims);
+        if (a.numFloat < na)
+            codedRows(a, b, sims);
+        return sims;
+    }
+
+    // The na rows of x with the nb rows of y, into
+    // sims[base + i*stride + j]
+    static void tile(float[] x, int na, float[] y, int nb, int d, float[] sims, int base, int stride) {
+        for (int i0 = 0; i0 < na; i0 += BLOCK) {
+            int i1 = Math.min(i0 + BLOCK, na);
+            for (int j0 = 0; j0 < nb; j0 += BLOCK) {
+                int j1 = Math.min(j0 + BLOCK, nb);
+                int i = i0;
+                for (; i+1 < i1; i += 2) {
+                    int j = j0;
+                    for (; j+1 < j1; j += 2)
+                        VecMath.dot2x2(x, i*d, (i+1)*d, y, j*d, (j+1)*d, d, sims, base + i*stride + j, base + (i+1)*stride + j);
+                    if (j < j1) {
+                        sims[base + i*stride + j] = VecMath.dot(x, i*d, y, j*d, d);
+                        sims[base + (i+1)*stride + j] = VecMath.dot(x, (i+1)*d, y, j*d, d);
+                    }
+                }
+                if (i < i1) {
+                    for (int j = j0; j < j1; j++)
+                        sims[base + i*stride + j] = VecMath.dot(x, i*d, y, j*d, d);
+                }
+            }
+        }
+    }
+
+    // The float rows of a with the coded rows of b: m table lookups each
+    // if a has the tables of b's quantizer
+    static void codedColumns(PackedVecs a, PackedVecs b, float[] sims) {
+        int nb = b.numRows, d = a.dimension, m = b.pq.getNumSubspaces();
+        AdcTables adc = a.adcTables;
+        boolean lookup = adc != null && adc.pq == b.pq;
+        int size = b.pq.getTableSize();
+        for (int i = 0; i < a.numFloat; i++) {
+            for (int j = b.numFloat; j < nb; j++) {
+                int c = j - b.numFloat;
+                float dot = lookup? b.pq.tableDot(adc.tables, i*size, b.codes, c*m) :
+                        b.pq.dot(a.rows, i*d, b.codes, c*m);
+                sims[i*nb + j] = dot*b.codeScales[c];
+            }
+        }
+    }
+
+    // The coded rows of a with all the rows of b. Both sides decoded
+    // once and tiled, which costs less than the m lookups of the
+    // symmetric distance per pair (and the intra-set block of a document
+    // is mostly coded rows with coded rows)
+    static void codedRows(PackedVecs a, PackedVecs b, float[] sims) {
+        int nb = b.numRows, d = a.dimension, base = a.numFloat*nb;
+        float[] x = a.decodeCoded();
+        int na = a.numRows - a.numFloat;
+        tile(x, na, b.rows, b.numFloat, d, sims, base, nb);
+        if (b.numFloat < nb) {
+            float[] y = b == a? x : b.decodeCoded();
+            tile(x, na, y, nb - b.numFloat, d, sims, base + b.numFloat, nb);
+        }
+    }
+
+    // The coded rows decoded (of unit length), one after the other
+    float[] decodeCoded() {
+        int m = pq.getNumSubspaces(), n = numRows - numFloat;
+        float[] decoded = new float[n*dimension];
+        for (int c = 0; c < n; c++)
+            pq.addTo(codes, c*m, decoded, c*dimension, codeScales[c]);
+        return decoded;
+    }
+
+    // Sum of the similarities of all the pairs (i < j) within the set
+    public synchronized float intraSimSum() {
+        if (Float.isNaN(intraSimSum)) {
+            float[] sims = simBlock(this, this, null);
+            float sum = 0;
+            for (int i = 0; i < numRows; i++) {
+                for (int j = i+1; j < numRows; j++)
+                    sum += sims[i*numRows + j];
+            }
+            intraSimSum = sum;
+        }
+        return intraSimSum;
+    }
+
+    // Sum of the rows (n times the mean vector), computed once and kept
+    // along with the set (i.e. across the queries if the set is cached)
+    public synchronized float[] rowSum() {
+        if (rowSum == null) {
+            float[] sum = new float[dimension];
+            for (int i = 0; i < numFloat; i++)
+                VecMath.axpy(1, rows, i*dimension, sum, 0, dimension);
+            for (int c = 0; c < numRows - numFloat; c++)
+                pq.addTo(codes, c*pq.getNumSubspaces(), sum, 0, codeScales[c]);
+            rowSum = sum;
+        }
+        return rowSum;
+    }
+
+    // Sum of the similarities of all the pairs (a_i, b_j), i.e. of the
+    // whole simBlock(a, b), in O(d): by linearity of the dot product it's
+    // the dot product of the row sums
+    public static float simSum(PackedVecs a, PackedVecs b) {
+        if (a.numRows == 0 || b.numRows == 0)
+            return 0;
+        return VecMath.dot(a.rowSum(), 0, b.rowSum(), 0, a.dimension);
+    }
+
+    // Reductions over a similarity block of na rows and nb columns
+
+    public static float max(float[] sims, int na, int nb, float init) {
+        float max = init;
+        for (int i = 0; i < na*nb; i++) {
+            if (sims[i] > max)
+                max = sims[i];
+        }
+        return max;
+    }
+
+    public static float min(float[] sims, int na, int nb, float init) {
+        float min = init;
+        for (int i = 0; i < na*nb; i++) {
+            if (sims[i] < min)
+                min = sims[i];
+        }
+        return min;
+    }
+
+    public static float sum(float[] sims, int na, int nb) {
+        float sum = 0;
+        for (int i = 0; i < na*nb; i++)
+            sum += sims[i];
+        return sum;
+    }
+
+    // Sum of each row i weighted by weights[i]
+    public static float weightedSum(float[] sims, int na, int nb, float[] weights) {
+        float sum = 0;
+        for (int i = 0; i < na; i++) {
+            float rowSum = 0;
+            for (int j = 0; j < nb; j++)
+                rowSum += sims[i*nb + j];
+            sum += weights[i]*rowSum;
+        }
+        return sum;
+    }
+
+    // max over the rows of the min over the row
+    public static float maxOfRowMins(float[] sims, int na, int nb) {
+        float result = 0;
+        for (int i = 0; i < na; i++) {
+            float rowMin = Float.MAX_VALUE;
+            for (int j = 0; j < nb; j++) {
+                if (sims[i*nb + j] < rowMin)
+                    rowMin = sims[i*nb + j];
+            }
+            if (rowMin > result)
+                result = rowMin;
+        }
+        return result;
+    }
+
+    // max over the columns of the min over the column
+    public static float maxOfColMins(float[] sims, int na, int nb) {
+        float result = 0;
+        for (int j = 0; j < nb; j++) {
+            float colMin = Float.MAX_VALUE;
+            for (int i = 0; i < na; i++) {
+                if (sims[i*nb + j] < colMin)
+                    colMin = sims[i*nb + j];
+            }
+            if (colMin > result)
+                result = colMin;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package wvec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.math3.ml.clustering.CentroidCluster;
+import org.apache.commons.math3.ml.clustering.DoublePoint;
+import org.apache.commons.math3.ml.clustering.KMeansPlusPlusClusterer;
+
+/**
+ * Product quantization of the word vectors. Each vector is split into m
+ * subvectors and each subvector is replaced by the (byte) id of its
+ * nearest centroid in a per-subspace codebook of at most 256 centroids
+ * learned by k-means. Only the codes (m bytes per word) and the codebooks
+ * are kept in memory.
+ *
+ * The similarity of a float (query) vector with a word is computed
+ * asymmetrically: buildTable() precomputes the dot product of each query
+ * subvector with every centroid of that subspace, after which the
+ * similarity with any word is the sum of m table lookups (see tableDot,
+ * which the reranking uses through PackedVecs). Without a table it's
+ * computed from the query subvectors and the centroids of the word's
+ * codes; that of two words is the sum of m lookups of the
+ * centroid-centroid dot products. The methods on a code array work on
+ * the codes of a row copied out of the quantizer (see getCodes).
+ *
+ * @author Debasis
+ */
+public class ProductQuantizer implements EncodedVecs {
+    int dimension;
+    int m;          // #subspaces
+    int k;          // #centroids per subspace
+    int[] subStart; // subspace s covers components [subStart[s], subStart[s+1])
+    float[][] codebooks;  // per subspace, k x subspace dimension
+    byte[] codes;   // numRows x m
+    // per subspace k x k dot products, computed once the codebooks are
+    // trained or loaded (or else on first use, by any thread)
+    volatile float[][] centroidDots;
+
+    static final int MAGIC = 0x50514342;  // "PQCB"
+
+    public ProductQuantizer(int dimension, int m, int k) {
+        if (k > 256)
+            throw new IllegalArgumentException("At most 256 centroids per subspace");
+        m = Math.min(m, dimension);
+        this.dimension = dimension;
+        this.m = m;
+        this.k = k;
+        subStart = new int[m+1];
+        for (int s = 0; s <= m; s++)
+            subStart[s] = s*dimension/m;
+        codebooks = new float[m][];
+    }
+
+    public int getNumSubspaces() { return m; }
+
+    public int getNumCentroids() { return k; }
+
+    // Allocate space for the codes of numRows vectors
+    public void allocate(int numRows) {
+        codes = new byte[numRows*m];
+    }
+
+    // Copies the m codes of a row into dst starting at offset
+    public void getCodes(int row, byte[] dst, int offset) {
+        System.arraycopy(codes, row*m, dst, offset, m);
+    }
+
+    // Trains the codebooks on numSamples row-major vectors, one k-means per subspace
+    public void train(final float[] samples, final int numSamples,
+            final int maxIterations, int numThreads) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<float[]>> results = new ArrayList<>(m);
+        for (int s = 0; s < m; s++) {
+            final int from = subStart[s], to = subStart[s+1];
+            results.add(executor.submit(new Callable<float[]>() {
+                @Override
+                public float[] call() throws Exception {
+                    return trainSubspace(samples, numSamples, from, to, maxIterations);
+                }
+            }));
+        }
+        try {
+            for (int s = 0; s < m; s++) {
+                codebooks[s] = results.get(s).get();
+                System.out.println("Trained codebook for subspace " + s);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        computeCentroidDots();
+    }
+
+    float[] trainSubspace(float[] samples, int numSamples, int from, int to, int maxIterations) {
+        int subDim = to - from;
+        List<DoublePoint> points = new ArrayList<>(numSamples);
+        for (int i = 0; i < numSamples; i++) {
+            double[] p = new double[subDim];
+            for (int j = 0; j < subDim; j++)
+                p[j] = samples[i*dimension + from + j];
+            points.add(new DoublePoint(p));
+        }
+
+        KMeansPlusPlusClusterer<DoublePoint> clusterer =
+                new KMeansPlusPlusClusterer<>(Math.min(k, numSamples), maxIterations);
+        List<CentroidCluster<DoublePoint>> clusters = clusterer.cluster(points);
+
+        // unused centroid slots (if fewer clusters than k) stay at the origin
+        float[] codebook = new float[k*subDim];
+        int c = 0;
+        for (CentroidCluster<DoublePoint> cluster : clusters) {
+            double[] centre = cluster.getCenter().getPoint();
+            for (int j = 0; j < subDim; j++)
+                codebook[c*subDim + j] = (float)centre[j];
+            c++;
+        }
+        return codebook;
+    }
+
+    @Override
+    public int getDimension() { return dimension; }
+
+    @Override
+    public void set(int row, float[] vec, int offset) {
+        int base = row*m;
+        for (int s = 0; s < m; s++) {
+            int from = subStart[s], subDim = subStart[s+1] - from;
+            float[] codebook = codebooks[s];
+            int best = 0;
+            float bestDist = Float.MAX_VALUE;
+            for (int c = 0; c < k; c++) {
+                float dist = VecMath.sqDist(vec, offset + from, 1, codebook, c*subDim, 1, subDim);
+                if (dist < bestDist) {
+                    bestDist = dist;
+                    best = c;
+                }
+            }
+            codes[base + s] = (byte)best;
+        }
+    }
+
+    int subspaceOf(int i) {
+        int s = i*m/dimension;
+        while (subStart[s+1] <= i)
+            s++;
+        while (subStart[s] > i)
+            s--;
+        return s;
+    }
+
+    @Override
+    public float get(int row, int i) {
+        int s = subspaceOf(i);
+        int subDim = subStart[s+1] - subStart[s];
+        int c = codes[row*m + s] & 0xFF;
+        return codebooks[s][c*subDim + i - subStart[s]];
+    }
+
+    float[][] computeCentroidDots() {
+        float[][] dots = new float[m][];
+        for (int s = 0; s < m; s++) {
+            int subDim = subStart[s+1] - subStart[s];
+            float[] codebook = codebooks[s];
+            float[] sdots = new float[k*k];
+            for (int a = 0; a < k; a++) {
+                for (int b = a; b < k; b++)
+                    sdots[a*k + b] = sdots[b*k + a] = VecMath.dot(codebook, a*subDim, codebook, b*subDim, subDim);
+            }
+            dots[s] = sdots;
+        }
+        centroidDots = dots;
+        return dots;
+    }
+
+    // Symmetric distance: looked up from the centroid-centroid dot products
+    @Override
+    public float dot(int row, int thatRow) {
+        return dot(codes, row*m, codes, thatRow*m);
+    }
+
+    public float dot(byte[] a, int aoff, byte[] b, int boff) {
+        float[][] dots = centroidDots;
+        if (dots == null)
+            dots = computeCentroidDots();
+        float sum = 0;
+        for (int s = 0; s < m; s++)
+            sum += dots[s][(a[aoff+s] & 0xFF)*k + (b[boff+s] & 0xFF)];
+        return sum;
+    }
+
+    @Override
+    public float dot(float[] q, int offset, int row) {
+        return dot(q, offset, codes, row*m);
+    }
+
+    public float dot(float[] q, int offset, byte[] codes, int coff) {
+        float sum = 0;
+        for (int s = 0; s < m; s++) {
+            int from = subStart[s], subDim = subStart[s+1] - from;
+            float[] codebook = codebooks[s];
+            sum += VecMath.dot(q, offset + from, codebook, (codes[coff + s] & 0xFF)*subDim, subDim);
+        }
+        return sum;
+    }
+
+    // The asymmetric distance table of a query vector, written to
+    // table[toff, toff + m*k): entry s*k + c is the dot product of the s-th
+    // subvector of the query with centroid c of subspace s
+    public void buildTable(float[] q, int offset, float[] table, int toff) {
+        for (int s = 0; s < m; s++) {
+            int from = subStart[s], subDim = subStart[s+1] - from;
+            float[] codebook = codebooks[s];
+            for (int c = 0; c < k; c++)
+                table[toff + s*k + c] = VecMath.dot(q, offset + from, codebook, c*subDim, subDim);
+        }
+    }
+
+    public int getTableSize() { return m*k; }
+
+    // Dot product of a query (given by its table) with the codes of a row: m lookups
+    public float tableDot(float[] table, int toff, byte[] codes, int coff) {
+        float sum = 0;
+        for (int s = 0; s < m; s++)
+            sum += table[toff + s*k + (codes[coff + s] & 0xFF)];
+        return sum;
+    }
+
+    @Override
+    public void addTo(int row, float[] acc, int offset, float scale) {
+        addTo(codes, row*m, acc, offset, scale);
+    }
+
+    public void addTo(byte[] codes, int coff, float[] acc, int offset, float scale) {
+        for (int s = 0; s < m; s++) {
+            int from = subStart[s], subDim = subStart[s+1] - from;
+            float[] codebook = codebooks[s];
+            VecMath.axpy(scale, codebook, (codes[coff + s] & 0xFF)*subDim, acc, offset + from, subDim);
+        }
+    }
+
+    @Override
+    public long ramBytes() {
+        long bytes = codes == null? 0 : codes.length;
+        for (float[] codebook : codebooks)
+            bytes += 4L*codebook.length;
+        return bytes;
+    }
+
+    // Saves the codebooks (the codes are cheap to recompute from the vectors)
+    public void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(dimension);
+            out.writeInt(m);
+            out.writeInt(k);
+            for (float[] codebook : codebooks) {
+                for (float f : codebook)
+                    out.writeFloat(f);
+            }
+        }
+    }
+
+    public static ProductQuantizer load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException(file.getPath() + " is not a PQ codebook file");
+            int dimension = in.readInt(), m = in.readInt(), k = in.readInt();
+            ProductQuantizer pq = new ProductQuantizer(dimension, m, k);
+            for (int s = 0; s < m; s++) {
+                float[] codebook = new float[k*(pq.subStart[s+1] - pq.subStart[s])];
+                for (int i = 0; i < codebook.length; i++)
+                    codebook[i] = in.readFloat();
+                pq.codebooks[s] = codebook;
+            }
+            pq.computeCentroidDots();
+            return pq;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package wvec;
+
+/**
+ * The vector kernels as straightforward loops.
+ *
+ * @author Debasis
+ */
+class ScalarKernels implements VecKernels {
+
+    @Override
+    public float dot(float[] a, int aoff, float[] b, int boff, int n) {
+        float sum = 0;
+        for (int i = 0; i < n; i++)
+            sum += a[aoff+i] * b[boff+i];
+        return sum;
+    }
+
+    @Override
+    public float sqDist(float[] a, int aoff, float as, float[] b, int boff, float bs, int n) {
+        float sum = 0, d;
+        for (int i = 0; i < n; i++) {
+            d = as*a[aoff+i] - bs*b[boff+i];
+            sum += d*d;
+        }
+        return sum;
+    }
+
+    @Override
+    public void axpy(float s, float[] x, int xoff, float[] y, int yoff, int n) {
+        for (int i = 0; i < n; i++)
+            y[yoff+i] += s * x[xoff+i];
+    }
+
+    @Override
+    public void dot2x2(float[] x, int a0, int a1, float[] y, int b0, int b1, int n,
+            float[] out, int out0, int out1) {
+        out[out0] = dot(x, a0, y, b0, n);
+        out[out0+1] = dot(x, a0, y, b1, n);
+        out[out1] = dot(x, a1, y, b0, n);
+        out[out1+1] = dot(x, a1, y, b1, n);
+    }
+
+    @Override
+    public double dot(double[] a, double[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++)
+            sum += a[i]*b[i];
+        return sum;
+    }
+}
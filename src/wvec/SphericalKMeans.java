@@ -0,0 +1,581 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package wvec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Spherical k-means, i.e. k-means on unit vectors where a point goes to
+ * the centroid with the largest dot product (cosine similarity) and the
+ * centroids are the normalized means of their points. The centroids are
+ * seeded with k-means|| (a few rounds of oversampling proportional to
+ * the distance from the centroids chosen so far, followed by a weighted
+ * k-means++ over the oversampled candidates), and updated either in full
+ * batches or in mini-batches of sampled points.
+ *
+ * The points are split into a fixed number of chunks which are processed
+ * in parallel on a fork-join pool; the per chunk results are merged in
+ * order, so that the clustering doesn't depend on the number of threads.
+ *
+ * If a checkpoint file is set, the state (centroids, assignments or
+ * mini-batch counts, iteration and random generator) is saved to it every
+ * few iterations, and a run started with a matching checkpoint resumes
+ * from there instead of starting over.
+ *
+ * @author Debasis
+ */
+public class SphericalKMeans {
+    static final int MAX_CHUNKS = 32;
+    static final int MIN_CHUNK = 1024;
+
+    int numPoints;
+    int dimension;
+    int k;
+    float[] points;     // unit rows
+    float[] centroids;  // k unit rows
+    int[] labels;
+    float[] sims;       // similarity of each point with its centroid
+
+    ForkJoinPool pool;
+    boolean ownPool;  // shut down once clustered, unless it's shared
+    long seed;
+    Random random;
+
+    int maxIterations = 100;
+    float tolerance = 0.001f;
+    int batchSize = 0;  // 0 for full batches
+    int seedingRounds = 2;
+    boolean verbose = true;  // print the progress of the iterations
+
+    int[] counts;  // #points seen by each centroid in mini-batch mode
+    int iteration;  // the next iteration to run
+
+    File checkpointFile;
+    int checkpointEvery;
+    long pointsHash;  // of the points clustered, to match a checkpoint against
+    float oversampling = 2;  // expected #candidates sampled per round, as a multiple of k
+
+    // The points are normalized in place
+    public SphericalKMeans(float[] points, int numPoints, int dimension, int k, int numThreads, long seed) {
+        this(points, numPoints, dimension, k, new ForkJoinPool(numThreads), seed);
+        ownPool = true;
+    }
+
+    // Runs on a pool shared with other clusterings, which is left running
+    SphericalKMeans(float[] points, int numPoints, int dimension, int k, ForkJoinPool pool, long seed) {
+        this.points = points;
+        this.numPoints = numPoints;
+        this.dimension = dimension;
+        this.k = Math.min(k, numPoints);
+        this.seed = seed;
+        random = new Random(seed);
+        this.pool = pool;
+        for (int i = 0; i < numPoints; i++)
+            normalize(points, i*dimension, dimension);
+        labels = new int[numPoints];
+        sims = new float[numPoints];
+    }
+
+    public void setMaxIterations(int maxIterations) { this.maxIterations = maxIterations; }
+
+    // batch: stop when at most this fraction of the points change cluster;
+    // mini-batch: stop when the centroids move less than this (mean distance)
+    public void setTolerance(float tolerance) { this.tolerance = tolerance; }
+
+    public void setBatchSize(int batchSize) { this.batchSize = batchSize; }
+
+    public void setSeedingRounds(int seedingRounds) { this.seedingRounds = seedingRounds; }
+
+    public void setVerbose(boolean verbose) { this.verbose = verbose; }
+
+    // Save the state to file every so many iterations (and after seeding)
+    public void setCheckpoint(File file, int everyIterations) {
+        this.checkpointFile = file;
+        this.checkpointEvery = everyIterations;
+        pointsHash = hashPoints(points, numPoints, dimension);
+    }
+
+    // FNV-1a over the components, so that a checkpoint isn't resumed on
+    // other points of the same number and dimension (e.g. retrained vectors)
+    static long hashPoints(float[] points, int numPoints, int dimension) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < numPoints*dimension; i++) {
+            h ^= Float.floatToIntBits(points[i]);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // What's saved in a checkpoint
+    static class Checkpoint implements Serializable {
+        private static final long serialVersionUID = 1L;
+        int numPoints, dimension, k, batchSize;
+        long seed;
+        long pointsHash;
+        int iteration;
+        float[] centroids;
+        int[] labels;
+        int[] counts;
+        Random random;
+    }
+
+    // Saves the state, to resume from the given iteration
+    void saveCheckpoint(int nextIteration) throws IOException {
+        Checkpoint ckpt = new Checkpoint();
+        ckpt.numPoints = numPoints;
+        ckpt.dimension = dimension;
+        ckpt.k = k;
+        ckpt.batchSize = batchSize;
+        ckpt.seed = seed;
+        ckpt.pointsHash = pointsHash;
+        ckpt.iteration = nextIteration;
+        ckpt.centroids = centroids;
+        ckpt.labels = labels;
+        ckpt.counts = counts;
+        ckpt.random = random;
+
+        // replace the previous checkpoint only once the new one is complete
+        File tmpFile = new File(checkpointFile.getPath() + ".tmp");
+        try (ObjectOutputStream out = new ObjectOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16))) {
+            out.writeObject(ckpt);
+        }
+        Files.move(tmpFile.toPath(), checkpointFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Restores the state from the checkpoint if it's from a run with the same settings
+    boolean loadCheckpoint() throws Exception {
+        if (checkpointFile == null || !checkpointFile.exists())
+            return false;
+        Checkpoint ckpt;
+        try (ObjectInputStream in = new ObjectInputStream(
+                new BufferedInputStream(new FileInputStream(checkpointFile), 1 << 16))) {
+            ckpt = (Checkpoint)in.readObject();
+        }
+        if (ckpt.numPoints != numPoints || ckpt.dimension != dimension || ckpt.k != k
+                || ckpt.batchSize != batchSize || ckpt.seed != seed || ckpt.pointsHash != pointsHash) {
+            System.out.println("Ignoring checkpoint " + checkpointFile + " of a different clustering run");
+            return false;
+        }
+        iteration = ckpt.iteration;
+        centroids = ckpt.centroids;
+        labels = ckpt.labels;
+        counts = ckpt.counts;
+        random = ckpt.random;
+        System.out.println("Resuming the clustering from iteration " + iteration + " (" + checkpointFile + ")");
+        return true;
+    }
+
+    void checkpoint(int nextIteration) throws IOException {
+        if (checkpointFile != null && checkpointEvery > 0 && nextIteration % checkpointEvery == 0)
+            saveCheckpoint(nextIteration);
+    }
+
+    public int getNumClusters() { return k; }
+
+    public int[] getLabels() { return labels; }
+
+    public float[] getCentroids() { return centroids; }
+
+    // Mean similarity of the points with their centroids
+    public float getMeanSim() {
+        double sum = 0;
+        for (int i = 0; i < numPoints; i++)
+            sum += sims[i];
+        return (float)(sum/numPoints);
+    }
+
+    static void normalize(float[] x, int offset, int dimension) {
+        float len = (float)Math.sqrt(VecMath.dot(x, offset, x, offset, dimension));
+        if (len > 0) {
+            for (int j = offset; j < offset+dimension; j++)
+                x[j] /= len;
+        }
+    }
+
+    // A computation over a chunk of the points
+    abstract class ChunkTask<T> implements Callable<T> {
+        int chunk, from, to;
+
+        @Override
+        public T call() throws Exception { return run(from, to); }
+
+        abstract T run(int from, int to) throws Exception;
+    }
+
+    <T> List<T> forEachChunk(int n, ChunkTaskFactory<T> factory) throws Exception {
+        int chunkSize = Math.max(MIN_CHUNK, (n + MAX_CHUNKS - 1)/MAX_CHUNKS);
+        List<ChunkTask<T>> tasks = new ArrayList<>();
+        for (int from = 0, chunk = 0; from < n; from += chunkSize, chunk++) {
+            ChunkTask<T> task = factory.create();
+            task.chunk = chunk;
+            task.from = from;
+            task.to = Math.min(n, from + chunkSize);
+            tasks.add(task);
+        }
+        List<T> results = new ArrayList<>(tasks.size());
+        for (Future<T> f : pool.invokeAll(tasks))
+            results.add(f.get());
+        return results;
+    }
+
+    interface ChunkTaskFactory<T> {
+        ChunkTask<T> create();
+    }
+
+    // Index of the most similar of centroids [0, numCentroids) to the
+    // point; its similarity goes in best[0]
+    int nearest(float[] x, int offset, float[] cents, int numCentroids, float[] best) {
+        int label = 0;
+        float max = -Float.MAX_VALUE;
+        for (int c = 0; c < numCentroids; c++) {
+            float sim = VecMath.dot(x, offset, cents, c*dimension, dimension);
+            if (sim > max) {
+                max = sim;
+                label = c;
+            }
+        }
+        best[0] = max;
+        return label;
+    }
+
+    public int[] cluster() throws Exception {
+        try {
+            if (!loadCheckpoint()) {
+                long start = System.currentTimeMillis();
+                seed();
+                if (verbose)
+                    System.out.println("Seeded " + k + " centroids in " + (System.currentTimeMillis() - start) + " ms");
+                iteration = 0;
+                Arrays.fill(labels, -1);
+                counts = new int[k];
+                if (checkpointFile != null)
+                    saveCheckpoint(0);
+            }
+            if (batchSize > 0 && batchSize < numPoints)
+                miniBatch();
+            else
+                fullBatch();
+            return labels;
+        }
+        finally {
+            if (ownPool)
+                pool.shutdown();
+        }
+    }
+
+    // k-means|| seeding
+    void seed() throws Exception {
+        final float[] dists = new float[numPoints];  // 1 - sim to the nearest candidate
+        Arrays.fill(dists, 2);
+        final List<Integer> candidateIds = new ArrayList<>();
+        candidateIds.add(random.nextInt(numPoints));
+        updateDists(dists, candidateIds, 0);
+
+        for (int round = 0; round < seedingRounds; round++) {
+            double cost = 0;
+            for (float d : dists)
+                cost += d;
+            if (cost <= 0)
+                break;
+            final double scale = oversampling*k/cost;
+            final int r = round;
+            List<List<Integer>> sampled = forEachChunk(numPoints, new ChunkTaskFactory<List<Integer>>() {
+                @Override
+                public ChunkTask<List<Integer>> create() {
+                    return new ChunkTask<List<Integer>>() {
+                        @Override
+                        List<Integer> run(int from, int to) {
+                            Random rnd = new Random(seed*31 + r*1000003L + chunk);
+                            List<Integer> ids = new ArrayList<>();
+                            for (int i = from; i < to; i++) {
+                                if (rnd.nextDouble() < dists[i]*scale)
+                                    ids.add(i);
+                            }
+                            return ids;
+                        }
+                    };
+                }
+            });
+            int numBefore = candidateIds.size();
+            for (List<Integer> ids : sampled)
+                candidateIds.addAll(ids);
+            updateDists(dists, candidateIds, numBefore);
+        }
+
+        // pad with random points if too few candidates were sampled
+        while (candidateIds.size() < k)
+            candidateIds.add(random.nextInt(numPoints));
+
+        // weight each candidate by the number of points nearest to it
+        final int numCandidates = candidateIds.size();
+        final float[] cands = new float[numCandidates*dimension];
+        for (int c = 0; c < numCandidates; c++)
+            System.arraycopy(points, candidateIds.get(c)*dimension, cands, c*dimension, dimension);
+        List<int[]> counts = forEachChunk(numPoints, new ChunkTaskFactory<int[]>() {
+            @Override
+            public ChunkTask<int[]> create() {
+                return new ChunkTask<int[]>() {
+                    @Override
+                    int[] run(int from, int to) {
+                        int[] count = new int[numCandidates];
+                        float[] best = new float[1];
+                        for (int i = from; i < to; i++)
+                            count[nearest(points, i*dimension, cands, numCandidates, best)]++;
+                        return count;
+                    }
+                };
+            }
+        });
+        float[] weights = new float[numCandidates];
+        for (int[] count : counts) {
+            for (int c = 0; c < numCandidates; c++)
+                weights[c] += count[c];
+        }
+
+        centroids = weightedKMeansPlusPlus(cands, weights, numCandidates);
+    }
+
+    // dists[i] = min(dists[i], 1 - sim of point i with the candidates from index 'from')
+    void updateDists(final float[] dists, List<Integer> candidateIds, int from) throws Exception {
+        final int numNew = candidateIds.size() - from;
+        final float[] cands = new float[numNew*dimension];
+        for (int c = 0; c < numNew; c++)
+            System.arraycopy(points, candidateIds.get(from + c)*dimension, cands, c*dimension, dimension);
+        forEachChunk(numPoints, new ChunkTaskFactory<Void>() {
+            @Override
+            public ChunkTask<Void> create() {
+                return new ChunkTask<Void>() {
+                    @Override
+                    Void run(int from, int to) {
+                        float[] best = new float[1];
+                        for (int i = from; i < to; i++) {
+                            nearest(points, i*dimension, cands, numNew, best);
+                            dists[i] = Math.min(dists[i], Math.max(0, 1 - best[0]));
+                        }
+                        return null;
+                    }
+                };
+            }
+        });
+    }
+
+    // k-means++ on the (few) weighted candidates
+    float[] weightedKMeansPlusPlus(float[] cands, float[] weights, int numCandidates) {
+        float[] chosen = new float[k*dimension];
+        double[] dists = new double[numCandidates];
+        Arrays.fill(dists, 2);
+        int next = pick(weights, null, numCandidates);
+        for (int c = 0; c < k; c++) {
+            System.arraycopy(cands, next*dimension, chosen, c*dimension, dimension);
+            for (int i = 0; i < numCandidates; i++) {
+                float sim = VecMath.dot(cands, i*dimension, chosen, c*dimension, dimension);
+                dists[i] = Math.min(dists[i], Math.max(0, 1 - sim));
+            }
+            next = pick(weights, dists, numCandidates);
+        }
+        return chosen;
+    }
+
+    // Samples an index with probability proportional to weights[i]*dists[i]
+    int pick(float[] weights, double[] dists, int n) {
+        double total = 0;
+        for (int i = 0; i < n; i++)
+            total += weights[i]*(dists == null? 1 : dists[i]);
+        if (total <= 0)
+            return random.nextInt(n);
+        double r = random.nextDouble()*total;
+        for (int i = 0; i < n; i++) {
+            r -= weights[i]*(dists == null? 1 : dists[i]);
+            if (r <= 0)
+                return i;
+        }
+        return n-1;
+    }
+
+    // Assigns every point to its nearest centroid, returns #points which changed cluster
+    int assign() throws Exception {
+        final float[] cents = centroids;
+        List<Integer> changes = forEachChunk(numPoints, new ChunkTaskFactory<Integer>() {
+            @Override
+            public ChunkTask<Integer> create() {
+                return new ChunkTask<Integer>() {
+                    @Override
+                    Integer run(int from, int to) {
+                        float[] best = new float[1];
+                        int changed = 0;
+                        for (int i = from; i < to; i++) {
+                            int label = nearest(points, i*dimension, cents, k, best);
+                            if (label != labels[i])
+                                changed++;
+                            labels[i] = label;
+                            sims[i] = best[0];
+                        }
+                        return changed;
+                    }
+                };
+            }
+        });
+        int changed = 0;
+        for (int c : changes)
+            changed += c;
+        return changed;
+    }
+
+    void fullBatch() throws Exception {
+        for (; iteration < maxIterations; iteration++) {
+            int changed = assign();
+            if (verbose)
+                System.out.println(String.format("Iteration %d: mean similarity %.6f, %d points changed cluster",
+                        iteration, getMeanSim(), changed));
+            if (changed <= tolerance*numPoints)
+                return;
+            updateCentroids();
+            checkpoint(iteration+1);
+        }
+        // stopped at maxIterations: the centroids were updated after the
+        // last assignment, so the labels are brought in line with them
+        assign();
+        if (verbose)
+            System.out.println(String.format("Final assignment: mean similarity %.6f", getMeanSim()));
+    }
+
+    // The centroids as the normalized sums of their points
+    void updateCentroids() throws Exception {
+        List<double[]> partials = forEachChunk(numPoints, new ChunkTaskFactory<double[]>() {
+            @Override
+            public ChunkTask<double[]> create() {
+                return new ChunkTask<double[]>() {
+                    @Override
+                    double[] run(int from, int to) {
+                        double[] sums = new double[k*dimension];
+                        for (int i = from; i < to; i++) {
+                            int base = labels[i]*dimension, p = i*dimension;
+                            for (int j = 0; j < dimension; j++)
+                                sums[base+j] += points[p+j];
+                        }
+                        return sums;
+                    }
+                };
+            }
+        });
+        double[] sums = partials.get(0);
+        for (int t = 1; t < partials.size(); t++) {
+            double[] partial = partials.get(t);
+            for (int j = 0; j < sums.length; j++)
+                sums[j] += partial[j];
+        }
+
+        int[] sizes = new int[k];
+        for (int i = 0; i < numPoints; i++)
+            sizes[labels[i]]++;
+        boolean[] taken = new boolean[numPoints];
+        for (int c = 0; c < k; c++) {
+            int base = c*dimension;
+            if (sizes[c] == 0) {
+                // move an empty centroid to the point farthest from its own centroid
+                int worst = -1;
+                for (int i = 0; i < numPoints; i++) {
+                    if (!taken[i] && (worst < 0 || sims[i] < sims[worst]))
+                        worst = i;
+                }
+                taken[worst] = true;
+                System.arraycopy(points, worst*dimension, centroids, base, dimension);
+                continue;
+            }
+            for (int j = 0; j < dimension; j++)
+                centroids[base+j] = (float)sums[base+j];
+            normalize(centroids, base, dimension);
+        }
+    }
+
+    // Mini-batch updates: each sampled point pulls its centroid towards
+    // itself at a rate of 1/(#points seen by the centroid so far)
+    void miniBatch() throws Exception {
+        final int[] batch = new int[batchSize];
+        final int[] batchLabels = new int[batchSize];
+        float[] old = new float[dimension];
+
+        for (; iteration < maxIterations; iteration++) {
+            for (int b = 0; b < batchSize; b++)
+                batch[b] = random.nextInt(numPoints);
+
+            final float[] cents = centroids;
+            List<Double> batchSims = forEachChunk(batchSize, new ChunkTaskFactory<Double>() {
+                @Override
+                public ChunkTask<Double> create() {
+                    return new ChunkTask<Double>() {
+                        @Override
+                        Double run(int from, int to) {
+                            float[] best = new float[1];
+                            double sum = 0;
+                            for (int b = from; b < to; b++) {
+                                batchLabels[b] = nearest(points, batch[b]*dimension, cents, k, best);
+                                sum += best[0];
+                            }
+                            return sum;
+                        }
+                    };
+                }
+            });
+            double sumSim = 0;
+            for (double s : batchSims)
+                sumSim += s;
+
+            // sequential gradient steps (cheap next to the assignment)
+            boolean[] touched = new boolean[k];
+            float[] before = new float[k*dimension];
+            for (int b = 0; b < batchSize; b++) {
+                int c = batchLabels[b], base = c*dimension, p = batch[b]*dimension;
+                if (!touched[c]) {
+                    System.arraycopy(centroids, base, before, base, dimension);
+                    touched[c] = true;
+                }
+                float eta = 1f/(++counts[c]);
+                for (int j = 0; j < dimension; j++)
+                    centroids[base+j] += eta*(points[p+j] - centroids[base+j]);
+            }
+
+            double shift = 0;
+            for (int c = 0; c < k; c++) {
+                if (!touched[c])
+                    continue;
+                normalize(centroids, c*dimension, dimension);
+                System.arraycopy(before, c*dimension, old, 0, dimension);
+                // distance moved, |old - new| = sqrt(2(1 - cos))
+                shift += Math.sqrt(Math.max(0, 2*(1 - VecMath.dot(old, 0, centroids, c*dimension, dimension))));
+            }
+            shift /= k;
+            if (verbose)
+                System.out.println(String.format("Mini-batch %d: mean similarity %.6f, centroid shift %.2e",
+                        iteration, sumSim/batchSize, shift));
+            if (shift < tolerance)
+                break;
+            checkpoint(iteration+1);
+        }
+        assign();
+        if (verbose)
+            System.out.println(String.format("Final assignment: mean similarity %.6f", getMeanSim()));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package wvec;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.packed.PackedInts;
+
+/**
+ * Binary encoding of the distinct vocabulary ids of the words of a
+ * document (see WordVecs.getWordId), optionally with their term
+ * frequencies, to be stored in the index as a forward index. The ids are
+ * sorted and stored as the gaps between them, bit packed with as many
+ * bits as the largest gap needs (and likewise the frequencies):
+ *
+ * version (byte) | flags (byte) | packed ints version (byte) |
+ * bits per gap (byte) | bits per tf (byte) | count (vint) |
+ * packed gaps | packed tfs (if flags has TF)
+ *
+ * @author Debasis
+ */
+public final class TermIdCodec {
+    public static final byte VERSION = 1;
+    static final int TF = 1;
+    static final int HEADER_SIZE = 5;
+
+    private TermIdCodec() {}
+
+    // ids (sorted in place) with their tfs (or null); only the first count are encoded
+    public static byte[] encode(int[] ids, int[] tfs, int count) throws IOException {
+        if (tfs != null)
+            sort(ids, tfs, count);
+        else
+            Arrays.sort(ids, 0, count);
+
+        long maxGap = 0, maxTf = 0;
+        for (int i = 0; i < count; i++) {
+            maxGap = Math.max(maxGap, i == 0? ids[0] : ids[i] - ids[i-1]);
+            if (tfs != null)
+                maxTf = Math.max(maxTf, tfs[i]);
+        }
+        int gapBits = PackedInts.bitsRequired(maxGap);
+        int tfBits = tfs != null? PackedInts.bitsRequired(maxTf) : 0;
+
+        int size = HEADER_SIZE + 5 + (int)PackedInts.Format.PACKED.byteCount(PackedInts.VERSION_CURRENT, count, gapBits);
+        if (tfs != null)
+            size += (int)PackedInts.Format.PACKED.byteCount(PackedInts.VERSION_CURRENT, count, tfBits);
+        byte[] bytes = new byte[size];
+        ByteArrayDataOutput out = new ByteArrayDataOutput(bytes);
+        out.writeByte(VERSION);
+        out.writeByte((byte)(tfs != null? TF : 0));
+        out.writeByte((byte)PackedInts.VERSION_CURRENT);
+        out.writeByte((byte)gapBits);
+        out.writeByte((byte)tfBits);
+        out.writeVInt(count);
+
+        PackedInts.Writer gaps = PackedInts.getWriterNoHeader(out, PackedInts.Format.PACKED, count, gapBits, 0);
+        for (int i = 0; i < count; i++)
+            gaps.add(i == 0? ids[0] : ids[i] - ids[i-1]);
+        gaps.finish();
+        if (tfs != null) {
+            PackedInts.Writer freqs = PackedInts.getWriterNoHeader(out, PackedInts.Format.PACKED, count, tfBits, 0);
+            for (int i = 0; i < count; i++)
+                freqs.add(tfs[i]);
+            freqs.finish();
+        }
+        return out.getPosition() == size? bytes : Arrays.copyOf(bytes, out.getPosition());
+    }
+
+    // Sorts the ids along with their tfs (insertion sort, the documents being short)
+    static void sort(int[] ids, int[] tfs, int count) {
+        for (int i = 1; i < count; i++) {
+            int id = ids[i], tf = tfs[i], j = i - 1;
+            while (j >= 0 && ids[j] > id) {
+                ids[j+1] = ids[j];
+                tfs[j+1] = tfs[j];
+                j--;
+            }
+            ids[j+1] = id;
+            tfs[j+1] = tf;
+        }
+    }
+
+    // The ids (in increasing order) encoded in bytes[offset, offset+length)
+    public static int[] decodeIds(byte[] bytes, int offset, int length) throws IOException {
+        return decode(bytes, offset, length, false);
+    }
+
+    // The tfs of the ids in the same order (null if they weren't stored)
+    public static int[] decodeTfs(byte[] bytes, int offset, int length) throws IOException {
+        return decode(bytes, offset, length, true);
+    }
+
+    static int[] decode(byte[] bytes, int offset, int length, boolean tfs) throws IOException {
+        ByteArrayDataInput in = new ByteArrayDataInput(bytes, offset, length);
+        byte version = in.readByte();
+        if (version != VERSION)
+            throw new IOException("Unsupported term id list version " + version);
+        int flags = in.readByte();
+        int packedVersion = in.readByte();
+        int gapBits = in.readByte();
+        int tfBits = in.readByte();
+        int count = in.readVInt();
+        if (tfs && (flags & TF) == 0)
+            return null;
+
+        int[] values = new int[count];
+        if (tfs) {
+            in.skipBytes(PackedInts.Format.PACKED.byteCount(packedVersion, count, gapBits));
+            PackedInts.ReaderIterator it = PackedInts.getReaderIteratorNoHeader(in,
+                    PackedInts.Format.PACKED, packedVersion, count, tfBits, 1);
+            for (int i = 0; i < count; i++)
+                values[i] = (int)it.next();
+            return values;
+        }
+        PackedInts.ReaderIterator it = PackedInts.getReaderIteratorNoHeader(in,
+                PackedInts.Format.PACKED, packedVersion, count, gapBits, 1);
+        int id = 0;
+        for (int i = 0; i < count; i++) {
+            id += (int)it.next();
+            values[i] = id;
+        }
+        return values;
+    }
+}
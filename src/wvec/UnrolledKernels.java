@@ -0,0 +1,98 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package wvec;
+
+/**
+ * The vector kernels unrolled by 4 with independent accumulators, which
+ * breaks the chain of dependent additions of a single accumulator (that
+ * the JIT can't reorder for floats) and lets the superword optimization
+ * vectorize the loop bodies.
+ *
+ * @author Debasis
+ */
+class UnrolledKernels implements VecKernels {
+
+    @Override
+    public float dot(float[] a, int aoff, float[] b, int boff, int n) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0, bound = n & ~3;
+        for (; i < bound; i += 4) {
+            s0 += a[aoff+i] * b[boff+i];
+            s1 += a[aoff+i+1] * b[boff+i+1];
+            s2 += a[aoff+i+2] * b[boff+i+2];
+            s3 += a[aoff+i+3] * b[boff+i+3];
+        }
+        for (; i < n; i++)
+            s0 += a[aoff+i] * b[boff+i];
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    @Override
+    public float sqDist(float[] a, int aoff, float as, float[] b, int boff, float bs, int n) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0, d0, d1, d2, d3;
+        int i = 0, bound = n & ~3;
+        for (; i < bound; i += 4) {
+            d0 = as*a[aoff+i] - bs*b[boff+i];
+            d1 = as*a[aoff+i+1] - bs*b[boff+i+1];
+            d2 = as*a[aoff+i+2] - bs*b[boff+i+2];
+            d3 = as*a[aoff+i+3] - bs*b[boff+i+3];
+            s0 += d0*d0;
+            s1 += d1*d1;
+            s2 += d2*d2;
+            s3 += d3*d3;
+        }
+        for (; i < n; i++) {
+            d0 = as*a[aoff+i] - bs*b[boff+i];
+            s0 += d0*d0;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    @Override
+    public void axpy(float s, float[] x, int xoff, float[] y, int yoff, int n) {
+        // no loop carried dependency here, the plain loop vectorizes as is
+        for (int i = 0; i < n; i++)
+            y[yoff+i] += s * x[xoff+i];
+    }
+
+    // The four products of the tile are the independent accumulators here,
+    // and each component loaded is used twice
+    @Override
+    public void dot2x2(float[] x, int a0, int a1, float[] y, int b0, int b1, int n,
+            float[] out, int out0, int out1) {
+        float s00 = 0, s01 = 0, s10 = 0, s11 = 0;
+        float xa, xb, ya, yb;
+        for (int k = 0; k < n; k++) {
+            xa = x[a0+k];
+            xb = x[a1+k];
+            ya = y[b0+k];
+            yb = y[b1+k];
+            s00 += xa*ya;
+            s01 += xa*yb;
+            s10 += xb*ya;
+            s11 += xb*yb;
+        }
+        out[out0] = s00;
+        out[out0+1] = s01;
+        out[out1] = s10;
+        out[out1+1] = s11;
+    }
+
+    @Override
+    public double dot(double[] a, double[] b) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0, n = a.length, bound = n & ~3;
+        for (; i < bound; i += 4) {
+            s0 += a[i] * b[i];
+            s1 += a[i+1] * b[i+1];
+            s2 += a[i+2] * b[i+2];
+            s3 += a[i+3] * b[i+3];
+        }
+        for (; i < n; i++)
+            s0 += a[i] * b[i];
+        return (s0 + s1) + (s2 + s3);
+    }
+}
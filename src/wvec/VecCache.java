@@ -0,0 +1,131 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package wvec;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A concurrent cache bounded by the (estimated) bytes of its values,
+ * evicting with the CLOCK (second chance) policy. Lookups are lock free
+ * and only set the referenced bit of an entry; insertions and evictions
+ * take a lock. Once inserted, the value for a key is never replaced,
+ * which is all that's needed for caching immutable lookups such as the
+ * vector of a word.
+ *
+ * @author Debasis
+ */
+public class VecCache<K, V> {
+
+    public interface Weigher<V> {
+        // Estimated number of bytes taken up by a value
+        public long weigh(V value);
+    }
+
+    static class Entry<K, V> {
+        final K key;
+        final V value;
+        final long weight;
+        volatile boolean referenced;
+
+        Entry(K key, V value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    final ConcurrentHashMap<K, Entry<K, V>> map;
+    final ArrayDeque<Entry<K, V>> clock;  // the hand is at the head
+    final Weigher<V> weigher;
+    final long maxBytes;
+    long bytes;
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong evictions = new AtomicLong();
+
+    public VecCache(long maxBytes, Weigher<V> weigher) {
+        this.maxBytes = maxBytes;
+        this.weigher = weigher;
+        map = new ConcurrentHashMap<>();
+        clock = new ArrayDeque<>();
+    }
+
+    public V get(K key) {
+        Entry<K, V> e = map.get(key);
+        if (e == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (!e.referenced)
+            e.referenced = true;
+        hits.incrementAndGet();
+        return e.value;
+    }
+
+    // Inserts the value if the key isn't there already and returns the
+    // value cached for the key.
+    public V putIfAbsent(K key, V value) {
+        Entry<K, V> e = new Entry<>(key, value, weigher.weigh(value));
+        synchronized (this) {
+            Entry<K, V> existing = map.putIfAbsent(key, e);
+            if (existing != null)
+                return existing.value;
+            clock.addLast(e);
+            bytes += e.weight;
+            while (bytes > maxBytes && clock.size() > 1)
+                evict();
+        }
+        return value;
+    }
+
+    // Advance the hand giving the referenced entries a second chance
+    // until an unreferenced one is found
+    void evict() {
+        while (true) {
+            Entry<K, V> e = clock.pollFirst();
+            if (e.referenced) {
+                e.referenced = false;
+                clock.addLast(e);
+                continue;
+            }
+            map.remove(e.key);
+            bytes -= e.weight;
+            evictions.incrementAndGet();
+            return;
+        }
+    }
+
+    public synchronized void clear() {
+        map.clear();
+        clock.clear();
+        bytes = 0;
+    }
+
+    public int size() { return map.size(); }
+
+    public synchronized long getBytes() { return bytes; }
+
+    public long getHits() { return hits.get(); }
+
+    public long getMisses() { return misses.get(); }
+
+    public long getEvictions() { return evictions.get(); }
+
+    public float getHitRate() {
+        long h = hits.get(), total = h + misses.get();
+        return total == 0? 0 : h/(float)total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d entries (%.1f/%.1f MB), hits: %d, misses: %d (hit rate %.3f), evictions: %d",
+                size(), getBytes()/(1024.0*1024.0), maxBytes/(1024.0*1024.0),
+                getHits(), getMisses(), getHitRate(), getEvictions());
+    }
+}
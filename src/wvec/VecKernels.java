@@ -0,0 +1,34 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package wvec;
+
+/**
+ * The vector arithmetic kernels which all the similarity and distance
+ * computations are built on. Vectors are given as an array with the
+ * offset of their first component, so that rows of a shared matrix
+ * can be passed without copying.
+ *
+ * @author Debasis
+ */
+public interface VecKernels {
+
+    // sum_i a[aoff+i] * b[boff+i]
+    public float dot(float[] a, int aoff, float[] b, int boff, int n);
+
+    // sum_i (as*a[aoff+i] - bs*b[boff+i])^2
+    public float sqDist(float[] a, int aoff, float as, float[] b, int boff, float bs, int n);
+
+    // y[yoff+i] += s * x[xoff+i]
+    public void axpy(float s, float[] x, int xoff, float[] y, int yoff, int n);
+
+    // The dot products of the rows x[a0..], x[a1..] with y[b0..], y[b1..]
+    // (a 2x2 tile of a matrix product): a0.b0, a0.b1 go to out[out0],
+    // out[out0+1] and a1.b0, a1.b1 to out[out1], out[out1+1]
+    public void dot2x2(float[] x, int a0, int a1, float[] y, int b0, int b1, int n,
+            float[] out, int out0, int out1);
+
+    public double dot(double[] a, double[] b);
+}
@@ -0,0 +1,107 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package wvec;
+
+import java.util.Random;
+
+/**
+ * Entry point to the vector kernels. The implementation is picked once at
+ * startup with the system property wvec.kernels, which is one of
+ * scalar/unrolled (the default) or the name of a class implementing
+ * VecKernels (e.g. one built on a SIMD library for the JDK in use). An
+ * implementation which can't be loaded falls back to the unrolled one.
+ *
+ * @author Debasis
+ */
+public final class VecMath {
+
+    static final VecKernels KERNELS = select(System.getProperty("wvec.kernels", "unrolled"));
+
+    private VecMath() {}
+
+    static VecKernels select(String name) {
+        if (name.equals("scalar"))
+            return new ScalarKernels();
+        if (name.equals("unrolled"))
+            return new UnrolledKernels();
+        try {
+            return (VecKernels)Class.forName(name).getDeclaredConstructor().newInstance();
+        }
+        catch (Exception | LinkageError ex) {
+            System.err.println("Couldn't load the vector kernels " + name + " (" + ex + "), using the unrolled ones");
+            return new UnrolledKernels();
+        }
+    }
+
+    public static VecKernels getKernels() { return KERNELS; }
+
+    public static float dot(float[] a, int aoff, float[] b, int boff, int n) {
+        return KERNELS.dot(a, aoff, b, boff, n);
+    }
+
+    public static float sqDist(float[] a, int aoff, float as, float[] b, int boff, float bs, int n) {
+        return KERNELS.sqDist(a, aoff, as, b, boff, bs, n);
+    }
+
+    public static void axpy(float s, float[] x, int xoff, float[] y, int yoff, int n) {
+        KERNELS.axpy(s, x, xoff, y, yoff, n);
+    }
+
+    public static void dot2x2(float[] x, int a0, int a1, float[] y, int b0, int b1, int n,
+            float[] out, int out0, int out1) {
+        KERNELS.dot2x2(x, a0, a1, y, b0, b1, n, out, out0, out1);
+    }
+
+    public static double dot(double[] a, double[] b) {
+        return KERNELS.dot(a, b);
+    }
+
+    // Times the kernels on random vectors, e.g. to compare
+    // java -Dwvec.kernels=scalar wvec.VecMath 200
+    public static void main(String[] args) {
+        int dimension = args.length > 0? Integer.parseInt(args[0]) : 200;
+        int numVecs = 10000, numRounds = 20;
+        Random random = new Random(1);
+        float[] vecs = new float[numVecs*dimension];
+        for (int i = 0; i < vecs.length; i++)
+            vecs[i] = random.nextFloat()*2 - 1;
+        float[] acc = new float[dimension];
+        float[] tile = new float[4];
+
+        System.out.println("Kernels: " + KERNELS.getClass().getName());
+        float sink = 0;
+        for (int round = 0; round < numRounds; round++) {
+            long start = System.nanoTime();
+            for (int i = 1; i < numVecs; i++)
+                sink += dot(vecs, 0, vecs, i*dimension, dimension);
+            long dotTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 1; i < numVecs; i++)
+                sink += sqDist(vecs, 0, 1, vecs, i*dimension, 1, dimension);
+            long distTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < numVecs; i++)
+                axpy(0.5f, vecs, i*dimension, acc, 0, dimension);
+            long axpyTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 2; i+1 < numVecs; i += 2) {
+                dot2x2(vecs, 0, dimension, vecs, i*dimension, (i+1)*dimension, dimension, tile, 0, 2);
+                sink += tile[3];
+            }
+            long tileTime = System.nanoTime() - start;
+
+            if (round == numRounds-1)
+                System.out.println(String.format("dot: %.1f ns, sqDist: %.1f ns, axpy: %.1f ns per vector, "
+                        + "dot2x2: %.1f ns per 4 products (d=%d)",
+                        dotTime/(double)numVecs, distTime/(double)numVecs, axpyTime/(double)numVecs,
+                        tileTime/(numVecs/2.0), dimension));
+        }
+        System.out.println("(" + (sink + acc[0]) + ")");
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package wvec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * Binary encoding of a set of vectors (e.g. the cluster centroids of a
+ * document) to be stored in the index, and decoded straight into the
+ * rows of a PackedVecs. Little endian layout:
+ *
+ * version (byte) | encoding (byte) | unused (short) | count (int) | dimension (int) |
+ * FLOAT32: count x dimension floats
+ * INT8: for each vector, its scale (float) and dimension bytes (x = b*scale)
+ *
+ * @author Debasis
+ */
+public final class VecSetCodec {
+    public static final byte VERSION = 1;
+    public static final byte FLOAT32 = 0;
+    public static final byte INT8 = 1;
+    static final int HEADER_SIZE = 12;
+
+    private VecSetCodec() {}
+
+    // float/int8
+    public static byte encodingOf(String name) {
+        if (name.equals("float"))
+            return FLOAT32;
+        if (name.equals("int8"))
+            return INT8;
+        throw new IllegalArgumentException("Unknown vector encoding " + name + " (float/int8)");
+    }
+
+    public static byte[] encode(List<WordVec> wvecs, byte encoding) {
+        int count = wvecs.size();
+        int dimension = count == 0? 0 : wvecs.get(0).getDimension();
+        int size = HEADER_SIZE + (encoding == INT8? count*(4 + dimension) : 4*count*dimension);
+        ByteBuffer buff = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buff.put(VERSION);
+        buff.put(encoding);
+        buff.putShort((short)0);
+        buff.putInt(count);
+        buff.putInt(dimension);
+
+        for (WordVec wv : wvecs) {
+            if (encoding == INT8) {
+                float max = 0;
+                for (int j = 0; j < dimension; j++)
+                    max = Math.max(max, Math.abs(wv.get(j)));
+                float scale = max > 0? max/127 : 1;
+                buff.putFloat(scale);
+                for (int j = 0; j < dimension; j++)
+                    buff.put((byte)Math.round(wv.get(j)/scale));
+            }
+            else {
+                for (int j = 0; j < dimension; j++)
+                    buff.putFloat(wv.get(j));
+            }
+        }
+        return buff.array();
+    }
+
+    // Whether bytes[offset, offset+length) is in this format, as opposed to
+    // the (gzipped) text of the vectors written by the older versions
+    public static boolean isEncoded(byte[] bytes, int offset, int length) {
+        return length >= HEADER_SIZE && bytes[offset] == VERSION
+                && (bytes[offset+1] == FLOAT32 || bytes[offset+1] == INT8);
+    }
+
+    // The vectors encoded in bytes[offset, offset+length)
+    public static PackedVecs decode(byte[] bytes, int offset, int length) {
+        ByteBuffer buff = ByteBuffer.wrap(bytes, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+        byte version = buff.get();
+        if (version != VERSION)
+            throw new IllegalArgumentException("Unsupported vector set version " + version);
+        byte encoding = buff.get();
+        buff.getShort();
+        int count = buff.getInt();
+        int dimension = buff.getInt();
+
+        float[] rows = new float[count*dimension];
+        if (encoding == FLOAT32) {
+            buff.asFloatBuffer().get(rows);
+        }
+        else if (encoding == INT8) {
+            for (int i = 0; i < count; i++) {
+                float scale = buff.getFloat();
+                int base = i*dimension;
+                for (int j = 0; j < dimension; j++)
+                    rows[base + j] = buff.get()*scale;
+            }
+        }
+        else
+            throw new IllegalArgumentException("Unknown vector encoding " + encoding);
+        return new PackedVecs(rows, count, dimension);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package wvec;
+
+import java.util.Arrays;
+
+/**
+ * A compact in-memory vocabulary of word vectors. Words are mapped to
+ * int ids with an open addressing hash table over a single char array,
+ * and all the vectors are kept in one row-major float array along with
+ * parallel arrays of their norms and cluster ids. A WordVec returned from
+ * here is a view over a row of the shared array rather than a copy.
+ *
+ * @author Debasis
+ */
+public class Vocabulary {
+    int dimension;
+    int size;
+    int capacity;
+    boolean unitNorm;  // store unit vectors (norms then holds the original lengths)
+
+    // words
+    char[] chars;
+    int numChars;
+    int[] wordOffsets;  // word id spans chars[wordOffsets[id], wordOffsets[id+1])
+    int[] table;  // id+1 or 0 if empty
+    int tableMask;
+
+    // per word data, indexed by the word id
+    float[] vecs;
+    EncodedVecs encoded;  // if quantized, in place of vecs
+    float[] scratch;
+    float[] norms;
+    int[] clusterIds;
+
+    Vocabulary() {}  // filled in by VocabularySnapshot.load()
+
+    public Vocabulary(int capacity, int dimension) {
+        this(capacity, dimension, false);
+    }
+    
+    public Vocabulary(int capacity, int dimension, boolean unitNorm) {
+        this(capacity, dimension, unitNorm, "none");
+    }
+    
+    // quantization is one of none/int8/fp16
+    public Vocabulary(int capacity, int dimension, boolean unitNorm, String quantization) {
+        this(capacity, dimension, unitNorm,
+            quantization.equals("int8")? new Int8Vecs(capacity, dimension) :
+            quantization.equals("fp16")? new HalfFloatVecs(capacity, dimension) :
+            null);
+    }
+    
+    // Keep the vectors in the given encoding (or as floats if null)
+    public Vocabulary(int capacity, int dimension, boolean unitNorm, EncodedVecs encoded) {
+        if ((long)capacity*dimension > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Vocabulary of " + capacity + "x" + dimension
+                    + " too large for an on-heap matrix; use the binary store (wvecs.store)");
+        this.capacity = capacity;
+        this.dimension = dimension;
+        this.unitNorm = unitNorm;
+        chars = new char[Math.max(16, capacity*8)];
+        wordOffsets = new int[capacity+1];
+        int tableSize = WordVecStoreWriter.tableSize(capacity);
+        table = new int[tableSize];
+        tableMask = tableSize - 1;
+        this.encoded = encoded;
+        if (encoded == null)
+            vecs = new float[capacity*dimension];
+        scratch = new float[dimension];
+        norms = new float[capacity];
+        clusterIds = new int[capacity];
+        Arrays.fill(clusterIds, -1);
+    }
+
+    public int size() { return size; }
+
+    public int getDimension() { return dimension; }
+
+    // Adds a word with its vector (read from vec[offset, offset+dimension))
+    // and returns its id. The vector of an existing word is overwritten.
+    public int add(String word, float[] vec, int offset) {
+        int id = getId(word);
+        if (id < 0) {
+            if (size == capacity)
+                throw new IllegalStateException("Vocabulary full (" + capacity + " words)");
+            id = size++;
+            appendWord(word);
+            int pos = WordVecStore.hash(word) & tableMask;
+            while (table[pos] != 0)
+                pos = (pos + 1) & tableMask;
+            table[pos] = id + 1;
+        }
+        float norm = (float)Math.sqrt(VecMath.dot(vec, offset, vec, offset, dimension));
+        norms[id] = norm;
+        
+        float scale = unitNorm && norm > 0? 1/norm : 1;
+        float[] dest = encoded != null? scratch : vecs;
+        int base = encoded != null? 0 : id*dimension;
+        for (int j = 0; j < dimension; j++)
+            dest[base+j] = vec[offset+j]*scale;
+        if (encoded != null)
+            encoded.set(id, scratch, 0);
+        return id;
+    }
+
+    void appendWord(String word) {
+        int len = word.length();
+        if (numChars + len > chars.length) {
+            char[] grown = new char[Math.max(chars.length*2, numChars + len)];
+            System.arraycopy(chars, 0, grown, 0, numChars);
+            chars = grown;
+        }
+        word.getChars(0, len, chars, numChars);
+        numChars += len;
+        wordOffsets[size] = numChars;
+    }
+
+    public int getId(String word) {
+        int pos = WordVecStore.hash(word) & tableMask;
+        int id;
+        while ((id = table[pos]) != 0) {
+            id--;
+            if (matches(id, word))
+                return id;
+            pos = (pos + 1) & tableMask;
+        }
+        return -1;
+    }
+
+    boolean matches(int id, String word) {
+        int start = wordOffsets[id];
+        int len = wordOffsets[id+1] - start;
+        if (len != word.length())
+            return false;
+        for (int i = 0; i < len; i++) {
+            if (chars[start+i] != word.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    public String getWord(int id) {
+        int start = wordOffsets[id];
+        return new String(chars, start, wordOffsets[id+1] - start);
+    }
+
+    public boolean isUnitNorm() { return unitNorm; }
+    
+    // Length of the vector as it was added
+    public float getNorm(int id) { return norms[id]; }
+
+    public int getClusterId(int id) { return clusterIds[id]; }
+
+    public void setClusterId(int id, int clusterId) { clusterIds[id] = clusterId; }
+
+    // The shared row-major matrix (null if quantized); row id starts at
+    // id*getDimension(). Rows are of unit length if the vocabulary is unit normalized.
+    public float[] getVecs() { return vecs; }
+    
+    public EncodedVecs getEncodedVecs() { return encoded; }
+    
+    public long ramBytes() {
+        long bytes = 2L*chars.length + 4L*(wordOffsets.length + table.length + norms.length + clusterIds.length);
+        return bytes + (encoded != null? encoded.ramBytes() : 4L*vecs.length);
+    }
+
+    public WordVec getVec(int id) {
+        return getVec(getWord(id), id);
+    }
+
+    public WordVec getVec(String word) {
+        int id = getId(word);
+        return id < 0? null : getVec(word, id);
+    }
+    
+    WordVec getVec(String word, int id) {
+        if (encoded != null)
+            return new WordVec(word, encoded, id, norms[id], unitNorm, clusterIds[id]);
+        return new WordVec(word, vecs, id*dimension, dimension, norms[id], unitNorm, clusterIds[id]);
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package wvec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A binary image of an in-memory Vocabulary (words, hash table, vectors
+ * in whichever encoding, norms and cluster ids). It's written after the
+ * vocabulary has been loaded the slow way, and read back on later starts
+ * with bulk copies out of the memory mapped file, split into segments
+ * copied in parallel. The image records a fingerprint of the sources
+ * (indexes, files and load options) it was built from and is ignored
+ * if these have changed since.
+ *
+ * @author Debasis
+ */
+public class VocabularySnapshot {
+
+    static final int MAGIC = 0x57565350;  // "WVSP"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int SEGMENT_SIZE = 1 << 26;  // bytes copied by one task
+
+    static final byte FLOATS = 0;
+    static final byte INT8 = 1;
+    static final byte FP16 = 2;
+    static final byte PQ = 3;
+
+    // Options which change what gets loaded in the vocabulary
+    static final String[] LOAD_OPTIONS = {
+        "wvecs.unitnorm", "wvecs.quantize", "wvecs.pq.m", "wvecs.pq.k",
+        "retrieve.vocabcluster.numclusters"
+    };
+
+    // A primitive array stored at a position in the file
+    static class Section {
+        Object array;
+        int length;
+        int elemSize;
+        long pos;
+
+        Section(Object array, int length, int elemSize) {
+            this.array = array;
+            this.length = length;
+            this.elemSize = elemSize;
+        }
+
+        long numBytes() { return (long)length*elemSize; }
+    }
+
+    // A 64-bit FNV-1a hash of the load options and of the name, size and
+    // modification time of each file of the sources
+    public static long fingerprint(Properties prop, File... sources) {
+        StringBuilder buff = new StringBuilder();
+        for (String option : LOAD_OPTIONS)
+            buff.append(option).append('=').append(prop.getProperty(option, "")).append('\n');
+        for (File source : sources)
+            describe(source, buff);
+
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < buff.length(); i++) {
+            h ^= buff.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    static void describe(File f, StringBuilder buff) {
+        if (f == null || !f.exists())
+            return;
+        if (f.isDirectory()) {
+            File[] files = f.listFiles();
+            Arrays.sort(files);
+            for (File child : files)
+                describe(child, buff);
+            return;
+        }
+        buff.append(f.getPath()).append(':').append(f.length()).append(':').append(f.lastModified()).append('\n');
+    }
+
+    static byte encodingOf(Vocabulary vocab) {
+        EncodedVecs enc = vocab.encoded;
+        return enc == null? FLOATS : enc instanceof Int8Vecs? INT8 : enc instanceof HalfFloatVecs? FP16 : PQ;
+    }
+
+    // The arrays making up the vocabulary, in the order in which they are stored
+    static List<Section> sections(Vocabulary vocab) {
+        List<Section> sections = new ArrayList<>();
+        sections.add(new Section(vocab.chars, vocab.numChars, 2));
+        sections.add(new Section(vocab.wordOffsets, vocab.wordOffsets.length, 4));
+        sections.add(new Section(vocab.table, vocab.table.length, 4));
+        sections.add(new Section(vocab.norms, vocab.norms.length, 4));
+        sections.add(new Section(vocab.clusterIds, vocab.clusterIds.length, 4));
+
+        switch (encodingOf(vocab)) {
+            case FLOATS:
+                sections.add(new Section(vocab.vecs, vocab.vecs.length, 4));
+                break;
+            case INT8:
+                Int8Vecs int8 = (Int8Vecs)vocab.encoded;
+                sections.add(new Section(int8.codes, int8.codes.length, 1));
+                sections.add(new Section(int8.mins, int8.mins.length, 4));
+                sections.add(new Section(int8.scales, int8.scales.length, 4));
+                sections.add(new Section(int8.codeSums, int8.codeSums.length, 4));
+                break;
+            case FP16:
+                HalfFloatVecs fp16 = (HalfFloatVecs)vocab.encoded;
+                sections.add(new Section(fp16.halfs, fp16.halfs.length, 2));
+                break;
+            case PQ:
+                ProductQuantizer pq = (ProductQuantizer)vocab.encoded;
+                for (float[] codebook : pq.codebooks)
+                    sections.add(new Section(codebook, codebook.length, 4));
+                sections.add(new Section(pq.codes, pq.codes.length, 1));
+                break;
+        }
+        return sections;
+    }
+
+    public static void save(Vocabulary vocab, File file, long fingerprint) throws IOException {
+        byte encoding = encodingOf(vocab);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(fingerprint);
+        header.putInt(vocab.capacity);
+        header.putInt(vocab.size);
+        header.putInt(vocab.dimension);
+        header.putInt(vocab.numChars);
+        header.putInt(vocab.table.length);
+        header.put(vocab.unitNorm? (byte)1 : (byte)0);
+        header.put(encoding);
+        if (encoding == PQ) {
+            ProductQuantizer pq = (ProductQuantizer)vocab.encoded;
+            header.putInt(pq.m);
+            header.putInt(pq.k);
+        }
+        header.clear();
+
+        // write to a temporary file and rename so that a partly written
+        // image is never picked up
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+            FileChannel channel = raf.getChannel()) {
+            raf.setLength(0);
+            channel.write(header, 0);
+            channel.position(HEADER_SIZE);
+
+            ByteBuffer buff = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            for (Section section : sections(vocab))
+                write(channel, section, buff);
+        }
+        if (file.exists() && !file.delete())
+            throw new IOException("Couldn't replace " + file.getPath());
+        if (!tmpFile.renameTo(file))
+            throw new IOException("Couldn't rename " + tmpFile.getPath() + " to " + file.getPath());
+    }
+
+    static void write(FileChannel channel, Section section, ByteBuffer buff) throws IOException {
+        int perBuff = buff.capacity()/section.elemSize;
+        for (int start = 0; start < section.length; start += perBuff) {
+            int len = Math.min(perBuff, section.length - start);
+            buff.clear();
+            put(buff, section.array, start, len);
+            buff.position(len*section.elemSize);
+            buff.flip();
+            while (buff.hasRemaining())
+                channel.write(buff);
+        }
+    }
+
+    // Bulk copy of array[start, start+len) into (put) or out of (get) a little endian buffer
+    static void put(ByteBuffer buff, Object array, int start, int len) {
+        if (array instanceof float[])
+            buff.asFloatBuffer().put((float[])array, start, len);
+        else if (array instanceof int[])
+            buff.asIntBuffer().put((int[])array, start, len);
+        else if (array instanceof char[])
+            buff.asCharBuffer().put((char[])array, start, len);
+        else if (array instanceof short[])
+            buff.asShortBuffer().put((short[])array, start, len);
+        else
+            buff.put((byte[])array, start, len);
+    }
+
+    static void get(ByteBuffer buff, Object array, int start, int len) {
+        if (array instanceof float[])
+            buff.asFloatBuffer().get((float[])array, start, len);
+        else if (array instanceof int[])
+            buff.asIntBuffer().get((int[])array, start, len);
+        else if (array instanceof char[])
+            buff.asCharBuffer().get((char[])array, start, len);
+        else if (array instanceof short[])
+            buff.asShortBuffer().get((short[])array, start, len);
+        else
+            buff.get((byte[])array, start, len);
+    }
+
+    // Returns null if the file isn't a snapshot of the same sources
+    public static Vocabulary load(File file, long fingerprint, int numThreads) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+            final FileChannel channel = raf.getChannel()) {
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getLong() != fingerprint)
+                return null;
+
+            Vocabulary vocab = new Vocabulary();
+            vocab.capacity = header.getInt();
+            vocab.size = header.getInt();
+            vocab.dimension = header.getInt();
+            vocab.numChars = header.getInt();
+            int tableSize = header.getInt();
+            vocab.unitNorm = header.get() == 1;
+            byte encoding = header.get();
+
+            int capacity = vocab.capacity, dimension = vocab.dimension;
+            vocab.chars = new char[vocab.numChars + 16];
+            vocab.wordOffsets = new int[capacity+1];
+            vocab.table = new int[tableSize];
+            vocab.tableMask = tableSize - 1;
+            vocab.norms = new float[capacity];
+            vocab.clusterIds = new int[capacity];
+            vocab.scratch = new float[dimension];
+            switch (encoding) {
+                case FLOATS:
+                    vocab.vecs = new float[capacity*dimension];
+                    break;
+                case INT8:
+                    vocab.encoded = new Int8Vecs(capacity, dimension);
+                    break;
+                case FP16:
+                    vocab.encoded = new HalfFloatVecs(capacity, dimension);
+                    break;
+                case PQ:
+                    ProductQuantizer pq = new ProductQuantizer(dimension, header.getInt(), header.getInt());
+                    for (int s = 0; s < pq.m; s++)
+                        pq.codebooks[s] = new float[pq.k*(pq.subStart[s+1] - pq.subStart[s])];
+                    pq.allocate(capacity);
+                    vocab.encoded = pq;
+                    break;
+                default:
+                    throw new IOException("Unknown vector encoding " + encoding + " in " + file.getPath());
+            }
+
+            // Lay out the sections and check that the file has all of them
+            List<Section> sections = sections(vocab);
+            long pos = HEADER_SIZE;
+            for (Section section : sections) {
+                section.pos = pos;
+                pos += section.numBytes();
+            }
+            if (pos != channel.size()) {
+                System.err.println("Ignoring truncated vocabulary snapshot " + file.getPath());
+                return null;
+            }
+
+            // Copy the segments in parallel
+            ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+            List<Future<Void>> copies = new ArrayList<>();
+            try {
+                for (final Section section : sections) {
+                    final int perSegment = SEGMENT_SIZE/section.elemSize;
+                    for (int start = 0; start < section.length; start += perSegment) {
+                        final int from = start, len = Math.min(perSegment, section.length - start);
+                        copies.add(executor.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws Exception {
+                                ByteBuffer buff = channel.map(FileChannel.MapMode.READ_ONLY,
+                                        section.pos + (long)from*section.elemSize,
+                                        (long)len*section.elemSize).order(ByteOrder.LITTLE_ENDIAN);
+                                get(buff, section.array, from, len);
+                                return null;
+                            }
+                        }));
+                    }
+                }
+                for (Future<Void> copy : copies)
+                    copy.get();
+            }
+            finally {
+                executor.shutdownNow();
+            }
+            return vocab;
+        }
+    }
+}
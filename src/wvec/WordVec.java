@@ -7,6 +7,7 @@ import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 import org.apache.commons.math3.ml.clustering.Clusterable;
 import org.apache.lucene.util.BytesRef;
@@ -26,20 +27,30 @@ import org.apache.lucene.util.BytesRef;
 
 public class WordVec implements Comparable<WordVec>, Serializable, Clusterable<WordVec> {
     String word;
-    float[] vec;
+    float[] vec;    // may be the shared matrix of a Vocabulary...
+    int offset;     // ...in which case this vector starts at vec[offset]
+    boolean shared; // and is copied before any change to the components
+    int dimension;
+    transient EncodedVecs enc;  // if quantized, row of enc in place of vec
+    int row;
     float norm;
+    boolean unit;   // if true, the components are scaled to unit length and norm is the original length
     float querySim; // distance from a reference query point
     transient boolean isComposed;
     int clusterId;
 
     public static final String COMPOSING_DELIM = ":";
     
-    public WordVec(int dimension) { vec = new float[dimension]; }
+    public WordVec(int dimension) {
+        vec = new float[dimension];
+        this.dimension = dimension;
+    }
     
     public WordVec(String line) {
         String[] tokens = line.split("\\s+");
         word = tokens[0];
         vec = new float[tokens.length-1];
+        dimension = vec.length;
         for (int i = 1; i < tokens.length; i++)
             vec[i-1] = Float.parseFloat(tokens[i]);
     }
@@ -51,13 +62,104 @@ public class WordVec implements Comparable<WordVec>, Serializable, Clusterable<W
             fvec[i] = (float)vec[i];
         
         this.vec = fvec;
+        this.dimension = fvec.length;
+    }
+    
+    public WordVec(String word, float[] vec) {
+        this.word = word;
+        this.vec = vec;
+        this.dimension = vec.length;
+    }
+    
+    // A view over a row of a shared matrix
+    WordVec(String word, float[] vecs, int offset, int dimension, float norm, boolean unit, int clusterId) {
+        this.word = word;
+        this.vec = vecs;
+        this.offset = offset;
+        this.shared = true;
+        this.dimension = dimension;
+        this.norm = norm;
+        this.unit = unit;
+        this.clusterId = clusterId;
+    }
+    
+    // A view over a row of a quantized matrix
+    WordVec(String word, EncodedVecs enc, int row, float norm, boolean unit, int clusterId) {
+        this.word = word;
+        this.enc = enc;
+        this.row = row;
+        this.dimension = enc.getDimension();
+        this.norm = norm;
+        this.unit = unit;
+        this.clusterId = clusterId;
+    }
+    
+    // Copy (or decode) into a float array of its own before modifying the
+    // components, so that a view never writes into the shared matrix
+    void materialize() {
+        if (enc == null && !shared)
+            return;
+        float[] own = new float[dimension];
+        for (int i = 0; i < dimension; i++)
+            own[i] = raw(i);
+        vec = own;
+        offset = 0;
+        shared = false;
+        enc = null;
     }
     
     // Normalize components in [0, 1]... the wordvecs are in [-1, 1]
     public void normalize() {
-        for (int i=0; i<vec.length; i++) {
+        materialize();
+        if (unit) {
+            scale(norm);
+            unit = false;
+        }
+        for (int i=offset; i<offset+dimension; i++) {
             vec[i] = (vec[i]+1)/2;
         }
+        norm = 0;
+    }
+    
+    // Scale to unit length remembering the original norm, so that the
+    // cosine similarity with another unit vector is just the dot product.
+    public void toUnit() {
+        if (unit)
+            return;
+        float len = getNorm();
+        if (len > 0)
+            scale(1/len);
+        unit = true;
+    }
+    
+    void scale(float factor) {
+        materialize();
+        for (int i=offset; i<offset+dimension; i++)
+            vec[i] *= factor;
+    }
+    
+    public boolean isUnit() { return unit; }
+    
+    public boolean isQuantized() { return enc != null; }
+    
+    // i-th stored component
+    float raw(int i) { return enc != null? enc.get(row, i) : vec[offset+i]; }
+    
+    // i-th component of the original (i.e. not unit normalized) vector
+    public float get(int i) { return unit? raw(i)*norm : raw(i); }
+    
+    // A copy of this vector which doesn't share storage with anything else
+    public WordVec copy() {
+        float[] copied = new float[dimension];
+        for (int i = 0; i < dimension; i++)
+            copied[i] = raw(i);
+        WordVec wv = new WordVec(word, copied);
+        wv.norm = norm;
+        wv.unit = unit;
+        wv.clusterId = clusterId;
+        wv.querySim = querySim;
+        wv.isComposed = isComposed;
+        return wv;
     }
     
     public boolean isComposed() { return isComposed; }
@@ -71,38 +173,69 @@ public class WordVec implements Comparable<WordVec>, Serializable, Clusterable<W
             return norm;
         
         // calculate and store
-        float sum = 0;
-        for (int i = 0; i < vec.length; i++) {
-            sum += vec[i]*vec[i];
+        float sum = 0, x;
+        if (enc == null) {
+            norm = (float)Math.sqrt(VecMath.dot(vec, offset, vec, offset, dimension));
+            return norm;
+        }
+        for (int i = 0; i < dimension; i++) {
+            x = raw(i);
+            sum += x*x;
         }
         norm = (float)Math.sqrt(sum);
         return norm;
     }
     
-    public int getDimension() { return this.vec.length; }
+    public int getDimension() { return this.dimension; }
     
     static public WordVec centroid(WordVec a, WordVec b) {
-        WordVec sum = new WordVec(a.vec.length);
+        WordVec sum = new WordVec(a.dimension);
         sum.word = a.word + COMPOSING_DELIM + b.word;
-        for (int i = 0; i < a.vec.length; i++) {
-            sum.vec[i] = (a.vec[i] + b.vec[i]);
+        for (int i = 0; i < a.dimension; i++) {
+            sum.vec[i] = (a.get(i) + b.get(i));
         }
         sum.isComposed = true;
         return sum;
     }
     
-    public float cosineSim(WordVec that) {
-        float sum = 0;
-        for (int i = 0; i < this.vec.length; i++) {
-            sum += vec[i] * that.vec[i];
+    public float dot(WordVec that) {
+        // quantized kernels
+        if (this.enc != null) {
+            if (that.enc == this.enc)
+                return enc.dot(this.row, that.row);
+            if (that.enc == null)
+                return enc.dot(that.vec, that.offset, this.row);
         }
-        return sum/(this.getNorm()*that.getNorm());
+        if (that.enc != null) {
+            if (this.enc == null)
+                return that.enc.dot(this.vec, this.offset, that.row);
+            float sum = 0;
+            for (int i = 0; i < dimension; i++)
+                sum += this.raw(i) * that.raw(i);
+            return sum;
+        }
+        
+        return VecMath.dot(this.vec, this.offset, that.vec, that.offset, dimension);
+    }
+    
+    public float cosineSim(WordVec that) {
+        float sum = dot(that);
+        if (this.unit && that.unit)
+            return sum;
+        return sum/(this.length()*that.length());
     }
     
+    // length of the stored components
+    float length() { return unit? 1 : getNorm(); }
+    
     public float euclideanDist(WordVec that) {
-        float sum = 0;
-        for (int i = 0; i < this.vec.length; i++) {
-            sum += (vec[i] - that.vec[i]) * ((vec[i] - that.vec[i]));
+        float sum = 0, d;
+        float ascale = this.unit? this.norm : 1, bscale = that.unit? that.norm : 1;
+        if (this.enc == null && that.enc == null)
+            return (float)Math.sqrt(VecMath.sqDist(this.vec, this.offset, ascale, that.vec, that.offset, bscale, dimension));
+        for (int i = 0; i < dimension; i++) {
+            d = raw(i)*ascale - that.raw(i)*bscale;
+            sum += d*d;
         }
         return (float)Math.sqrt(sum);
     }
@@ -129,6 +262,11 @@ public class WordVec implements Comparable<WordVec>, Serializable, Clusterable<W
         return byteArray;
     }
     
+    // Don't serialize the whole shared matrix along with a view
+    private Object writeReplace() throws ObjectStreamException {
+        return enc == null && !shared? this : copy();
+    }
+    
     static WordVec decodeFromByteArray(BytesRef bytes) throws Exception {
         ObjectInput in;
         Object o;
@@ -142,9 +280,9 @@ public class WordVec implements Comparable<WordVec>, Serializable, Clusterable<W
 
     @Override
     public double[] getPoint() {
-        double[] vec = new double[this.vec.length];
-        for (int i=0; i<this.vec.length; i++)
-            vec[i] = this.vec[i];
+        double[] vec = new double[dimension];
+        for (int i=0; i<dimension; i++)
+            vec[i] = get(i);
         return vec;
     }
     
@@ -152,8 +290,8 @@ public class WordVec implements Comparable<WordVec>, Serializable, Clusterable<W
     public String toString() {
         StringBuffer buff = new StringBuffer(word);
         buff.append(" ");
-        for (double d : this.vec) {
-            buff.append(d).append(" ");
+        for (int i = 0; i < dimension; i++) {
+            buff.append((double)get(i)).append(" ");
         }
         return buff.toString();
     }
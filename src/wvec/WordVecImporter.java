@@ -0,0 +1,412 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package wvec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Imports the output of word2vec (either the text or the binary format)
+ * into a WordVecStore. The input file is memory mapped and, for the text
+ * format, cut into chunks at line boundaries which are parsed in parallel
+ * straight from the mapped bytes. The parsed chunks are appended to the
+ * store in file order so that the word ids are deterministic.
+ *
+ * @author Debasis
+ */
+public class WordVecImporter {
+    File inFile;
+    File outFile;
+    boolean binary;
+    int numThreads;
+    int chunkSize;
+    int numSkipped;  // malformed lines
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final int DEFAULT_CHUNK_SIZE = 32 << 20;
+    static final int MAX_WORD_LEN = 1 << 16;
+    static final int MAX_WINDOW = 1 << 30;
+
+    public WordVecImporter(File inFile, File outFile, boolean binary, int numThreads) {
+        this.inFile = inFile;
+        this.outFile = outFile;
+        this.binary = binary;
+        this.numThreads = numThreads;
+        this.chunkSize = DEFAULT_CHUNK_SIZE;
+    }
+
+    // Binary files are written by word2vec with -binary 1 and conventionally named *.bin
+    static boolean isBinary(String format, File file) {
+        if (format.equals("auto"))
+            return file.getName().endsWith(".bin");
+        return format.equals("binary");
+    }
+
+    public int importFile() throws Exception {
+        long start = System.currentTimeMillis();
+        int numWords;
+
+        try (RandomAccessFile raf = new RandomAccessFile(inFile, "r");
+            FileChannel channel = raf.getChannel()) {
+            numWords = binary? importBinary(channel) : importText(channel);
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        double secs = elapsed/1000.0;
+        System.out.println(String.format("Imported %d words in %.1fs (%.0f words/s, %.1f MB/s)",
+                numWords, secs, numWords/secs, inFile.length()/(1024.0*1024.0)/secs));
+        if (numSkipped > 0)
+            System.out.println("Skipped " + numSkipped + " malformed lines");
+        return numWords;
+    }
+
+    /* Text format */
+
+    // Result of parsing one chunk of lines
+    static class ParsedChunk {
+        List<String> words = new ArrayList<>();
+        float[] vecs;
+        int numVecs;
+        int numSkipped;
+
+        ParsedChunk(int dimension, int expected) {
+            vecs = new float[dimension*Math.max(16, expected)];
+        }
+
+        void ensureRow(int dimension) {
+            if ((numVecs+1)*dimension > vecs.length) {
+                float[] grown = new float[vecs.length*2];
+                System.arraycopy(vecs, 0, grown, 0, numVecs*dimension);
+                vecs = grown;
+            }
+        }
+    }
+
+    class TextChunkParser implements Callable<ParsedChunk> {
+        FileChannel channel;
+        long start, end;
+        int dimension;
+
+        TextChunkParser(FileChannel channel, long start, long end, int dimension) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.dimension = dimension;
+        }
+
+        @Override
+        public ParsedChunk call() throws Exception {
+            MappedByteBuffer buff = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            int len = buff.limit();
+            // rough guess of the number of lines in the chunk: ~9 bytes per component
+            ParsedChunk chunk = new ParsedChunk(dimension, len/(dimension*9 + 1));
+            byte[] wordBytes = new byte[256];
+            int[] pos = new int[1];
+            int p = 0;
+
+            while (p < len) {
+                // word
+                p = skipSpaces(buff, p, len);
+                if (p >= len)
+                    break;
+                int wordStart = p;
+                while (p < len && !isSpace(buff.get(p)))
+                    p++;
+                int wordLen = p - wordStart;
+                if (wordLen > wordBytes.length)
+                    wordBytes = new byte[Math.min(MAX_WORD_LEN, wordLen*2)];
+                wordLen = Math.min(wordLen, wordBytes.length);
+                for (int i = 0; i < wordLen; i++)
+                    wordBytes[i] = buff.get(wordStart + i);
+
+                // vector components
+                chunk.ensureRow(dimension);
+                float[] vecs = chunk.vecs;
+                int base = chunk.numVecs*dimension;
+                int j = 0;
+                boolean malformed = false;
+                pos[0] = p;
+                while (j < dimension) {
+                    int q = skipBlanks(buff, pos[0], len);
+                    if (q >= len || buff.get(q) == '\n')
+                        break;
+                    pos[0] = q;
+                    try {
+                        vecs[base + j] = parseFloat(buff, pos, len);
+                    }
+                    catch (NumberFormatException ex) {
+                        malformed = true;
+                        break;
+                    }
+                    j++;
+                }
+                p = pos[0];
+                // skip the rest of the line
+                while (p < len && buff.get(p) != '\n')
+                    p++;
+
+                if (j == dimension && !malformed) {
+                    chunk.words.add(new String(wordBytes, 0, wordLen, UTF8));
+                    chunk.numVecs++;
+                }
+                else if (j > 0 || wordLen > 0) {
+                    System.err.println("Skipping malformed vector for " + new String(wordBytes, 0, wordLen, UTF8));
+                    chunk.numSkipped++;
+                }
+            }
+            return chunk;
+        }
+    }
+
+    static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    static int skipSpaces(MappedByteBuffer buff, int p, int len) {
+        while (p < len && isSpace(buff.get(p)))
+            p++;
+        return p;
+    }
+
+    // Skips white spaces other than the end of line
+    static int skipBlanks(MappedByteBuffer buff, int p, int len) {
+        byte b;
+        while (p < len && ((b = buff.get(p)) == ' ' || b == '\t' || b == '\r'))
+            p++;
+        return p;
+    }
+
+    static final double[] POW10 = new double[23];
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++)
+            POW10[i] = POW10[i-1]*10;
+    }
+
+    /**
+     * Parses a decimal float starting at pos[0] without allocating anything
+     * and advances pos[0] past it. Falls back on Float.parseFloat for the
+     * (rare) inputs with more than 18 significant digits or a large exponent.
+     */
+    static float parseFloat(MappedByteBuffer buff, int[] pos, int len) {
+        int p = pos[0];
+        int start = p;
+        boolean negative = false;
+        byte b = buff.get(p);
+        if (b == '-' || b == '+') {
+            negative = b == '-';
+            p++;
+        }
+
+        long mantissa = 0;
+        int numDigits = 0;
+        int exp = 0;
+        boolean exact = true;
+
+        while (p < len && (b = buff.get(p)) >= '0' && b <= '9') {
+            if (numDigits < 18) {
+                mantissa = mantissa*10 + (b - '0');
+                if (mantissa > 0)
+                    numDigits++;
+            }
+            else
+                exp++;
+            p++;
+        }
+        if (p < len && buff.get(p) == '.') {
+            p++;
+            while (p < len && (b = buff.get(p)) >= '0' && b <= '9') {
+                if (numDigits < 18) {
+                    mantissa = mantissa*10 + (b - '0');
+                    if (mantissa > 0)
+                        numDigits++;
+                    exp--;
+                }
+                p++;
+            }
+        }
+        if (p < len && ((b = buff.get(p)) == 'e' || b == 'E')) {
+            p++;
+            boolean negExp = false;
+            if (p < len && ((b = buff.get(p)) == '-' || b == '+')) {
+                negExp = b == '-';
+                p++;
+            }
+            int e = 0;
+            while (p < len && (b = buff.get(p)) >= '0' && b <= '9') {
+                e = Math.min(e*10 + (b - '0'), 10000);
+                p++;
+            }
+            exp += negExp? -e : e;
+        }
+        if (numDigits >= 18 || exp < -(POW10.length-1) || exp > POW10.length-1)
+            exact = false;
+        // anything unexpected (nan, inf etc.)
+        while (p < len && !isSpace(buff.get(p))) {
+            exact = false;
+            p++;
+        }
+        pos[0] = p;
+
+        if (!exact) {
+            byte[] bytes = new byte[p - start];
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = buff.get(start + i);
+            return Float.parseFloat(new String(bytes, UTF8));
+        }
+
+        double value = exp < 0? mantissa/POW10[-exp] : mantissa*POW10[exp];
+        return (float)(negative? -value : value);
+    }
+
+    int importText(FileChannel channel) throws Exception {
+        long fileSize = channel.size();
+
+        // Read the first line to see if it's the header (#words #dims)
+        // and to get the dimension of the vectors.
+        MappedByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileSize, MAX_WORD_LEN*4));
+        int eol = 0;
+        while (eol < head.limit() && head.get(eol) != '\n')
+            eol++;
+        byte[] firstLineBytes = new byte[eol];
+        head.get(firstLineBytes);
+        String[] tokens = new String(firstLineBytes, UTF8).trim().split("\\s+");
+
+        long dataStart = 0;
+        int dimension = tokens.length - 1;
+        if (tokens.length == 2) {
+            dimension = Integer.parseInt(tokens[1]);
+            dataStart = eol + 1;
+        }
+
+        System.out.println("Importing " + dimension + "-dimensional vectors from "
+                + inFile.getName() + " with " + numThreads + " threads...");
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        WordVecStoreWriter writer = new WordVecStoreWriter(outFile, dimension);
+        // keep a bounded number of chunks in flight
+        LinkedList<Future<ParsedChunk>> pending = new LinkedList<>();
+        try {
+            long start = dataStart;
+            while (start < fileSize) {
+                long end = nextLineBoundary(channel, Math.min(fileSize, start + chunkSize), fileSize);
+                pending.add(executor.submit(new TextChunkParser(channel, start, end, dimension)));
+                start = end;
+                if (pending.size() >= 2*numThreads)
+                    write(writer, pending.removeFirst().get());
+            }
+            while (!pending.isEmpty())
+                write(writer, pending.removeFirst().get());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        int numWords = writer.size();
+        writer.close();
+        return numWords;
+    }
+
+    static long nextLineBoundary(FileChannel channel, long pos, long fileSize) throws IOException {
+        while (pos < fileSize) {
+            int len = (int)Math.min(1 << 20, fileSize - pos);
+            MappedByteBuffer buff = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+            for (int i = 0; i < len; i++) {
+                if (buff.get(i) == '\n')
+                    return pos + i + 1;
+            }
+            pos += len;
+        }
+        return fileSize;
+    }
+
+    void write(WordVecStoreWriter writer, ParsedChunk chunk) throws IOException {
+        numSkipped += chunk.numSkipped;
+        int dimension = writer.getDimension();
+        for (int i = 0; i < chunk.numVecs; i++)
+            writer.add(chunk.words.get(i), chunk.vecs, i*dimension);
+    }
+
+    /* Binary format: "#words #dims\n" followed by, for each word, the word,
+       a space, #dims little endian floats and (optionally) a new line. */
+
+    int importBinary(FileChannel channel) throws Exception {
+        long fileSize = channel.size();
+        long windowStart = 0;
+        int p = 0;
+
+        MappedByteBuffer buff = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileSize, MAX_WINDOW));
+        StringBuilder header = new StringBuilder();
+        byte b;
+        while ((b = buff.get(p++)) != '\n')
+            header.append((char)b);
+        String[] tokens = header.toString().trim().split("\\s+");
+        int numWords = Integer.parseInt(tokens[0]);
+        int dimension = Integer.parseInt(tokens[1]);
+        int recordMax = MAX_WORD_LEN + 4*dimension + 2;
+
+        System.out.println("Importing " + numWords + " " + dimension + "-dimensional vectors from "
+                + inFile.getName() + "...");
+
+        WordVecStoreWriter writer = new WordVecStoreWriter(outFile, dimension);
+        byte[] wordBytes = new byte[MAX_WORD_LEN];
+        float[] vec = new float[dimension];
+
+        for (int i = 0; i < numWords; i++) {
+            // slide the window forward if the next record may cross its end
+            if (p + recordMax > buff.limit() && windowStart + buff.limit() < fileSize) {
+                windowStart += p;
+                p = 0;
+                buff = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                        Math.min(fileSize - windowStart, MAX_WINDOW));
+            }
+            buff.order(ByteOrder.LITTLE_ENDIAN);
+
+            while (buff.get(p) == '\n')
+                p++;
+            int wordLen = 0;
+            while ((b = buff.get(p++)) != ' ')
+                wordBytes[wordLen++] = b;
+            for (int j = 0; j < dimension; j++, p += 4)
+                vec[j] = buff.getFloat(p);
+
+            writer.add(new String(wordBytes, 0, wordLen, UTF8), vec);
+        }
+
+        numWords = writer.size();
+        writer.close();
+        return numWords;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: java WordVecImporter <word2vec file> <store file> [text|binary|auto]");
+            return;
+        }
+        try {
+            File inFile = new File(args[0]);
+            boolean binary = isBinary(args.length > 2? args[2] : "auto", inFile);
+            WordVecImporter importer = new WordVecImporter(inFile, new File(args[1]),
+                    binary, Runtime.getRuntime().availableProcessors());
+            importer.importFile();
+        }
+        catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+}
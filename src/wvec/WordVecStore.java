@@ -0,0 +1,245 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package wvec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only binary store of word vectors, memory mapped from a file
+ * written out by WordVecStoreWriter. The vectors are laid out as one
+ * contiguous row-major float matrix and the words are kept in an open
+ * addressing hash table saved along with it. Opening the store involves
+ * no parsing, and a lookup is a hash probe followed by a read of one
+ * row of the matrix. Since the mapped pages live in the OS page cache and
+ * not on the Java heap, this can be used in a limited memory environment.
+ * The vectors looked up are views of the mapped rows (read-only encoded
+ * vectors, see EncodedVecs), i.e. nothing is copied out of the store.
+ *
+ * File layout (little endian):
+ * header | float matrix (numWords x dimension) | word offsets (numWords+1 ints) |
+ * word chars (UTF-16) | hash table (tableSize ints, row+1 or 0 if empty)
+ *
+ * @author Debasis
+ */
+public class WordVecStore implements EncodedVecs {
+    File file;
+    RandomAccessFile raf;
+    FileChannel channel;
+    int numWords;
+    int dimension;
+    int tableMask;
+    int rowsPerSegment;
+    FloatBuffer[] segments;
+    IntBuffer wordOffsets;
+    CharBuffer wordChars;
+    IntBuffer table;
+
+    // The rows are copied out in bulk into the buffers of the calling
+    // thread, and the arithmetic done there by the VecMath kernels
+    ThreadLocal<RowReader> rowReaders = new ThreadLocal<RowReader>() {
+        @Override
+        protected RowReader initialValue() { return new RowReader(); }
+    };
+
+    static final int MAGIC = 0x57565354;  // "WVST"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    // A single mapping can't exceed 2GB, so the matrix is mapped in segments of at most 1GB
+    static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+    public WordVecStore(File file) throws IOException {
+        this.file = file;
+        raf = new RandomAccessFile(file, "r");
+        channel = raf.getChannel();
+
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt(0) != MAGIC)
+            throw new IOException(file.getPath() + " is not a word vector store");
+        if (header.getInt(4) != VERSION)
+            throw new IOException("Unsupported word vector store version " + header.getInt(4));
+
+        numWords = header.getInt(8);
+        dimension = header.getInt(12);
+        int tableSize = header.getInt(16);
+        tableMask = tableSize - 1;
+        long matrixOffset = header.getLong(24);
+        long offsetsOffset = header.getLong(32);
+        long charsOffset = header.getLong(40);
+        long tableOffset = header.getLong(48);
+        long numChars = header.getLong(56);
+
+        // Map the vectors
+        long rowBytes = (long)dimension * 4;
+        rowsPerSegment = (int)Math.max(1, MAX_SEGMENT_BYTES / rowBytes);
+        int numSegments = (numWords + rowsPerSegment - 1) / rowsPerSegment;
+        segments = new FloatBuffer[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            int rows = Math.min(rowsPerSegment, numWords - i*rowsPerSegment);
+            segments[i] = map(matrixOffset + i*rowsPerSegment*rowBytes, rows*rowBytes).asFloatBuffer();
+        }
+
+        // Map the dictionary
+        wordOffsets = map(offsetsOffset, (long)(numWords+1)*4).asIntBuffer();
+        wordChars = map(charsOffset, numChars*2).asCharBuffer();
+        table = map(tableOffset, (long)tableSize*4).asIntBuffer();
+    }
+
+    ByteBuffer map(long pos, long len) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, pos, len).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Mixes the bits of the (cached) String hash code. The writer
+    // uses the same function to place the words in the table.
+    static int hash(String word) {
+        int h = word.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    public int size() { return numWords; }
+
+    @Override
+    public int getDimension() { return dimension; }
+
+    public File getFile() { return file; }
+
+    // Returns the row of the word in the matrix or -1 if not present.
+    // Doesn't allocate anything.
+    public int getId(String word) {
+        int pos = hash(word) & tableMask;
+        int row;
+        while ((row = table.get(pos)) != 0) {
+            row--;
+            if (matches(row, word))
+                return row;
+            pos = (pos + 1) & tableMask;
+        }
+        return -1;
+    }
+
+    boolean matches(int row, String word) {
+        int start = wordOffsets.get(row);
+        int len = wordOffsets.get(row+1) - start;
+        if (len != word.length())
+            return false;
+        for (int i = 0; i < len; i++) {
+            if (wordChars.get(start+i) != word.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    public String getWord(int row) {
+        int start = wordOffsets.get(row);
+        int end = wordOffsets.get(row+1);
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++)
+            chars[i-start] = wordChars.get(i);
+        return new String(chars);
+    }
+
+    @Override
+    public float get(int row, int j) {
+        return segments[row / rowsPerSegment].get((row % rowsPerSegment)*dimension + j);
+    }
+
+    @Override
+    public void set(int row, float[] vec, int offset) {
+        throw new UnsupportedOperationException("The word vector store is read-only");
+    }
+
+    @Override
+    public float dot(int row, int thatRow) {
+        RowReader r = rowReaders.get();
+        r.read(row, r.a, 0);
+        r.read(thatRow, r.b, 0);
+        return VecMath.dot(r.a, 0, r.b, 0, dimension);
+    }
+
+    @Override
+    public float dot(float[] q, int offset, int row) {
+        RowReader r = rowReaders.get();
+        r.read(row, r.a, 0);
+        return VecMath.dot(q, offset, r.a, 0, dimension);
+    }
+
+    @Override
+    public void addTo(int row, float[] acc, int offset, float scale) {
+        RowReader r = rowReaders.get();
+        r.read(row, r.a, 0);
+        VecMath.axpy(scale, r.a, 0, acc, offset, dimension);
+    }
+
+    // The rows are in the OS page cache, not on the heap
+    @Override
+    public long ramBytes() { return 0; }
+
+    // Copies the vector at the given row into dst starting at offset
+    public void getVec(int row, float[] dst, int offset) {
+        rowReaders.get().read(row, dst, offset);
+    }
+
+    // A view of the mapped row of the word (or null if not present); the
+    // vector is copied out only if it's modified (see WordVec.materialize)
+    public WordVec getVec(String word) {
+        int row = getId(word);
+        if (row < 0)
+            return null;
+        return new WordVec(word, this, row, 0, false, 0);
+    }
+
+    public void close() throws IOException {
+        channel.close();
+        raf.close();
+    }
+
+    // Views of the segments with positions of their own (so that a row is
+    // read with a relative bulk get), and two rows of scratch space
+    class RowReader {
+        FloatBuffer[] views = new FloatBuffer[segments.length];
+        float[] a = new float[dimension], b = new float[dimension];
+
+        RowReader() {
+            for (int i = 0; i < segments.length; i++)
+                views[i] = segments[i].duplicate();
+        }
+
+        void read(int row, float[] dst, int offset) {
+            FloatBuffer view = views[row / rowsPerSegment];
+            view.position((row % rowsPerSegment)*dimension);
+            view.get(dst, offset, dimension);
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: java WordVecStore <store-file> <word>");
+            return;
+        }
+        try {
+            WordVecStore store = new WordVecStore(new File(args[0]));
+            System.out.println(store.size() + " words of dimension " + store.getDimension());
+            System.out.println(store.getVec(args[1]));
+            store.close();
+        }
+        catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package wvec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes out a WordVecStore. The vectors are streamed to the file as they
+ * are added; the words are held in memory until close() when the
+ * dictionary and the hash table are appended and the header is filled in.
+ *
+ * @author Debasis
+ */
+public class WordVecStoreWriter {
+    File file;
+    RandomAccessFile raf;
+    FileChannel channel;
+    ByteBuffer buff;
+    int dimension;
+    List<String> words;
+
+    static final int BUFF_SIZE = 1 << 20;
+
+    public WordVecStoreWriter(File file, int dimension) throws IOException {
+        this.file = file;
+        this.dimension = dimension;
+        words = new ArrayList<>();
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        channel = raf.getChannel();
+        channel.position(WordVecStore.HEADER_SIZE);
+        buff = ByteBuffer.allocateDirect(BUFF_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int getDimension() { return dimension; }
+
+    public int size() { return words.size(); }
+
+    public void add(String word, float[] vec) throws IOException {
+        add(word, vec, 0);
+    }
+
+    // Adds the vector stored at vec[offset, offset+dimension)
+    public void add(String word, float[] vec, int offset) throws IOException {
+        for (int j = 0; j < dimension; j++) {
+            if (buff.remaining() < 4)
+                flush();
+            buff.putFloat(vec[offset + j]);
+        }
+        words.add(word);
+    }
+
+    void flush() throws IOException {
+        buff.flip();
+        while (buff.hasRemaining())
+            channel.write(buff);
+        buff.clear();
+    }
+
+    void putInt(int v) throws IOException {
+        if (buff.remaining() < 4)
+            flush();
+        buff.putInt(v);
+    }
+
+    void putChar(char c) throws IOException {
+        if (buff.remaining() < 2)
+            flush();
+        buff.putChar(c);
+    }
+
+    static int tableSize(int numWords) {
+        int size = 16;
+        while (size < 2L*numWords)
+            size <<= 1;
+        return size;
+    }
+
+    public void close() throws IOException {
+        int numWords = words.size();
+        long matrixOffset = WordVecStore.HEADER_SIZE;
+        long offsetsOffset = matrixOffset + (long)numWords*dimension*4;
+
+        // Word offsets (in chars)
+        int numChars = 0;
+        putInt(0);
+        for (String word : words) {
+            numChars += word.length();
+            putInt(numChars);
+        }
+
+        // Word chars
+        long charsOffset = offsetsOffset + (long)(numWords+1)*4;
+        for (String word : words) {
+            for (int i = 0; i < word.length(); i++)
+                putChar(word.charAt(i));
+        }
+        if (numChars % 2 == 1)
+            putChar((char)0); // keep the table aligned on an int
+
+        // Open addressing table of row+1 (0 marks an empty slot)
+        long tableOffset = charsOffset + (long)(numChars + numChars%2)*2;
+        int tableSize = tableSize(numWords);
+        int mask = tableSize - 1;
+        int[] table = new int[tableSize];
+        int numDuplicates = 0;
+        for (int row = 0; row < numWords; row++) {
+            String word = words.get(row);
+            int pos = WordVecStore.hash(word) & mask;
+            boolean duplicate = false;
+            while (table[pos] != 0) {
+                if (words.get(table[pos]-1).equals(word)) {
+                    duplicate = true;
+                    break;
+                }
+                pos = (pos + 1) & mask;
+            }
+            if (duplicate)
+                numDuplicates++;
+            else
+                table[pos] = row + 1;
+        }
+        for (int slot : table)
+            putInt(slot);
+        flush();
+
+        if (numDuplicates > 0)
+            System.err.println("Ignored " + numDuplicates + " duplicate words in " + file.getName());
+
+        ByteBuffer header = ByteBuffer.allocate(WordVecStore.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(WordVecStore.MAGIC);
+        header.putInt(WordVecStore.VERSION);
+        header.putInt(numWords);
+        header.putInt(dimension);
+        header.putInt(tableSize);
+        header.putInt(0);
+        header.putLong(matrixOffset);
+        header.putLong(offsetsOffset);
+        header.putLong(charsOffset);
+        header.putLong(tableOffset);
+        header.putLong(numChars);
+        header.flip();
+        channel.write(header, 0);
+
+        channel.close();
+        raf.close();
+    }
+}
@@ -14,10 +14,10 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
@@ -46,50 +46,336 @@ public class WordVecs {
     static Properties prop;
     static IndexReader reader;
     static IndexSearcher searcher;
-    static IndexReader clusterInfoReader;
+    static ClusterMap clusterMap;  // cluster id of each word id (if the vocabulary is clustered)
+    static int numVocabClusters;   // the default number of clusters for getClusterId
+    static WordVecStore store;  // memory mapped binary vectors (if available)
     
-    static HashMap<String, Integer> clusterMap = new HashMap();
-    static HashMap<String, WordVec> wvecMap = new HashMap();
+    static Vocabulary vocab;
+    static boolean unitNorm;  // keep the vectors L2 normalized so that cosine is a dot product
+    
+    // Lazy (low memory) mode: no vocabulary in memory, the vectors
+    // looked up are kept in a bounded cache instead
+    static boolean lazy;
+    static VecCache<String, WordVec> cache;
+    static final WordVec NO_VEC = new WordVec(0);  // cached for words without a vector
+    
+    static HNSWIndex knnIndex;  // built (or loaded) on the first k-NN lookup
     
     static public void init(String propFile) throws Exception {        
-        prop = new Properties();
+        Properties prop = new Properties();
         prop.load(new FileReader(propFile));        
+        init(prop);
+    }
+    
+    static public void init(Properties prop) throws Exception {        
+        WordVecs.prop = prop;
         String loadFrom = prop.getProperty("wvecs.index");
-        File indexDir = new File(loadFrom);
+        String storePath = prop.getProperty("wvecs.store");
+        unitNorm = Boolean.parseBoolean(prop.getProperty("wvecs.unitnorm", "false"));
+        numVocabClusters = Integer.parseInt(prop.getProperty("retrieve.vocabcluster.numclusters", "0"));
+        if (storePath != null && new File(storePath).exists()) {
+            store = new WordVecStore(new File(storePath));
+        }
+        else {
+            File indexDir = new File(loadFrom);
+            reader = DirectoryReader.open(FSDirectory.open(indexDir));
+            searcher = new IndexSearcher(reader);
+        }
         
-        reader = DirectoryReader.open(FSDirectory.open(indexDir));
-        searcher = new IndexSearcher(reader);
+        lazy = Boolean.parseBoolean(prop.getProperty("wvecs.lazy", "false"));
+        int cacheMB = Integer.parseInt(prop.getProperty("wvecs.cache.mb", lazy? "256" : "0"));
+        if (cacheMB > 0) {
+            cache = new VecCache<>(cacheMB*1024L*1024L, new VecCache.Weigher<WordVec>() {
+                @Override
+                public long weigh(WordVec wv) {
+                    // the floats (of its own, or of the row viewed in a store),
+                    // the word and the object headers
+                    return 4L*wv.getDimension() + 2L*(wv.word == null? 0 : wv.word.length()) + 96;
+                }
+            });
+        }
         
-        int numVocabClusters = Integer.parseInt(prop.getProperty("retrieve.vocabcluster.numclusters", "0"));
-        if (numVocabClusters > 0) {
-            String clusterInfoIndexPath = prop.getProperty("wvecs.clusterids.basedir") + "/" + numVocabClusters;
-            clusterInfoReader = DirectoryReader.open(FSDirectory.open(new File(clusterInfoIndexPath)));
+        if (lazy) {
+            vocab = null;
+            clusterMap = openClusterMap();
+            // the words clustered must be the vocabulary or a prefix of it,
+            // as when it's loaded (hashed through the store or the index,
+            // once, at the start)
+            int numWords = store != null? store.size() : reader.numDocs();
+            if (clusterMap != null && (clusterMap.size() > numWords ||
+                    clusterMap.getVocabHash() != getVocabHash(clusterMap.size()))) {
+                System.out.println("Ignoring " + clusterMap.getFile().getPath() + " computed over a different vocabulary");
+                clusterMap.close();
+                clusterMap = null;
+            }
+            System.out.println("Loading wvecs on demand in a cache of " + cacheMB + " MB");
+            return;
         }
         
-        System.out.println("Loading cluster ids in memory...");
-        int numDocs = clusterInfoReader.numDocs();
-        for (int i=0; i<numDocs; i++) {
-            Document d = clusterInfoReader.document(i);
-            String wordName = d.get(WordVecsIndexer.FIELD_WORD_NAME);
-            int clusterId = Integer.parseInt(d.get(WordVecsIndexer.FIELD_WORD_VEC));
-            clusterMap.put(wordName, clusterId);
+        String snapshotPath = prop.getProperty("wvecs.snapshot");
+        if (snapshotPath != null && new File(snapshotPath).exists()) {
+            long start = System.currentTimeMillis();
+            vocab = VocabularySnapshot.load(new File(snapshotPath), snapshotFingerprint(),
+                    Runtime.getRuntime().availableProcessors());
+            if (vocab != null) {
+                System.out.println(String.format("Loaded %d vectors from the snapshot %s in %d ms",
+                        vocab.size(), snapshotPath, System.currentTimeMillis() - start));
+                clusterMap = openClusterMap();  // for the cuts of a hierarchical clustering
+                return;
+            }
+            System.out.println("Snapshot " + snapshotPath + " is out of date");
         }
         
+        loadVocabulary();
+        
+        if (snapshotPath != null) {
+            System.out.println("Writing snapshot " + snapshotPath);
+            VocabularySnapshot.save(vocab, new File(snapshotPath), snapshotFingerprint());
+        }
+    }
+    
+    // <wvecs.clusterids.basedir>/<k>.cids for k = retrieve.vocabcluster.numclusters,
+    // or if there's no such file, the hierarchical clustering into
+    // wvecs.numclusters clusters (which is cut at k); null if not clustered
+    static File clusterMapFile() {
+        int numVocabClusters = Integer.parseInt(prop.getProperty("retrieve.vocabcluster.numclusters", "0"));
+        if (numVocabClusters <= 0)
+            return null;
+        String basedir = prop.getProperty("wvecs.clusterids.basedir");
+        File file = new File(basedir + "/" + numVocabClusters + ".cids");
+        if (!file.exists() && prop.getProperty("wvecs.numclusters") != null)
+            file = new File(basedir + "/" + prop.getProperty("wvecs.numclusters") + ".cids");
+        return file;
+    }
+    
+    static ClusterMap openClusterMap() throws Exception {
+        File file = clusterMapFile();
+        if (file == null)
+            return null;
+        if (!file.exists()) {
+            System.out.println("No cluster ids in " + file.getPath() + " (run WordVecsIndexer to cluster the vocabulary)");
+            return null;
+        }
+        ClusterMap map = new ClusterMap(file);
+        int numVocabClusters = Integer.parseInt(prop.getProperty("retrieve.vocabcluster.numclusters", "0"));
+        if (map.getNumClusters() != numVocabClusters &&
+                (!map.isHierarchical() || map.getNumClusters() < numVocabClusters)) {
+            System.out.println("Ignoring " + file.getPath() + " which has no clustering into " + numVocabClusters + " clusters");
+            map.close();
+            return null;
+        }
+        return map;
+    }
+    
+    // The files from which the vocabulary is loaded, and so which invalidate a snapshot
+    static long snapshotFingerprint() {
+        List<File> sources = new ArrayList<>();
+        if (store != null)
+            sources.add(store.getFile());
+        else
+            sources.add(new File(prop.getProperty("wvecs.index")));
+        
+        if (clusterMapFile() != null)
+            sources.add(clusterMapFile());
+        if (prop.getProperty("wvecs.quantize", "none").equals("pq") && prop.getProperty("wvecs.pq.codebooks") != null)
+            sources.add(new File(prop.getProperty("wvecs.pq.codebooks")));
+        return VocabularySnapshot.fingerprint(prop, sources.toArray(new File[sources.size()]));
+    }
+    
+    static void loadVocabulary() throws Exception {
+        String quantization = prop.getProperty("wvecs.quantize", "none");
         System.out.println("Loading wvecs in memory...");
-        numDocs = reader.numDocs();
-        for (int i=0; i<numDocs; i++) {
-            Document d = reader.document(i);
-            String wordName = d.get(WordVecsIndexer.FIELD_WORD_NAME);
-            String line = d.get(WordVecsIndexer.FIELD_WORD_VEC);
-            WordVec wv = new WordVec(line);
-            wv.normalize();
-            wvecMap.put(wordName, wv);
+        int numWords = store != null? store.size() : reader.numDocs();
+        int dimension = readVec(0).getDimension();
+        if (quantization.equals("pq"))
+            vocab = new Vocabulary(numWords, dimension, unitNorm, loadProductQuantizer(numWords, dimension));
+        else
+            vocab = new Vocabulary(numWords, dimension, unitNorm, quantization);
+        
+        for (int i=0; i<numWords; i++) {
+            WordVec wv = readVec(i);
+            vocab.add(wv.word, wv.vec, 0);
+        }
+        
+        System.out.println(String.format("Loaded %d vectors (%s) in %.1f MB", vocab.size(),
+                quantization, vocab.ramBytes()/(1024.0*1024.0)));
+        
+        clusterMap = openClusterMap();
+        if (clusterMap != null) {
+            // the cluster ids are aligned with the word ids... the words
+            // clustered must be the vocabulary or a prefix of it (new words
+            // appended since)
+            int numClustered = clusterMap.size();
+            if (numClustered > numWords || clusterMap.getVocabHash() != ClusterMap.hashWords(vocab, numClustered)) {
+                System.out.println("Ignoring " + clusterMap.getFile().getPath() + " computed over a different vocabulary");
+                clusterMap.close();
+                clusterMap = null;
+                return;
+            }
+            System.out.println("Loading cluster ids in memory...");
+            for (int i = 0; i < numClustered; i++)
+                vocab.setClusterId(i, clusterMap.getClusterId(i));
+            
+            if (numClustered < numWords) {
+                List<WordVec> newWords = new ArrayList<>(numWords - numClustered);
+                for (int i = numClustered; i < numWords; i++)
+                    newWords.add(readRawVec(i));
+                int[] labels = clusterMap.assignNearest(newWords);
+                for (int i = numClustered; i < numWords; i++)
+                    vocab.setClusterId(i, labels[i - numClustered]);
+                System.out.println("Assigned " + labels.length + " new words to their nearest clusters" +
+                        " (run WordVecsIndexer to save the assignment)");
+            }
+        }
+    }
+    
+    // Reads the i-th vector from the store (no parsing needed)
+    // or else from the Lucene index, normalized in [0, 1]
+    static WordVec readVec(int i) throws Exception {
+        WordVec wv = readRawVec(i);
+        wv.normalize();
+        return wv;
+    }
+    
+    // The i-th vector as stored (as clustered)
+    static WordVec readRawVec(int i) throws Exception {
+        if (store != null) {
+            float[] vec = new float[store.getDimension()];
+            store.getVec(i, vec, 0);
+            return new WordVec(store.getWord(i), vec);
+        }
+        return new WordVec(reader.document(i).get(WordVecsIndexer.FIELD_WORD_VEC));
+    }
+    
+    // Loads the PQ codebooks if already trained, else trains them on a
+    // sample of the vocabulary (and saves them for the next time)
+    static ProductQuantizer loadProductQuantizer(int numWords, int dimension) throws Exception {
+        int m = Integer.parseInt(prop.getProperty("wvecs.pq.m", "30"));
+        int k = Integer.parseInt(prop.getProperty("wvecs.pq.k", "256"));
+        String codebookPath = prop.getProperty("wvecs.pq.codebooks");
+        
+        ProductQuantizer pq = null;
+        if (codebookPath != null && new File(codebookPath).exists()) {
+            pq = ProductQuantizer.load(new File(codebookPath));
+            if (pq.getDimension() != dimension || pq.getNumSubspaces() != Math.min(m, dimension)
+                    || pq.getNumCentroids() != k) {
+                System.out.println("Ignoring PQ codebooks in " + codebookPath + " trained with different parameters");
+                pq = null;
+            }
+        }
+        
+        if (pq == null) {
+            int numSamples = Math.min(numWords, Integer.parseInt(prop.getProperty("wvecs.pq.trainsize", "20000")));
+            System.out.println("Training PQ codebooks (m=" + m + ", k=" + k + ") on " + numSamples + " vectors...");
+            float[] samples = new float[numSamples*dimension];
+            Random random = new Random(numWords);
+            for (int i = 0; i < numSamples; i++) {
+                WordVec wv = readVec(numSamples == numWords? i : random.nextInt(numWords));
+                if (unitNorm)
+                    wv.toUnit();  // train on what will be encoded
+                System.arraycopy(wv.vec, 0, samples, i*dimension, dimension);
+            }
+            pq = new ProductQuantizer(dimension, m, k);
+            pq.train(samples, numSamples, Integer.parseInt(prop.getProperty("wvecs.pq.iterations", "20")),
+                    Runtime.getRuntime().availableProcessors());
+            if (codebookPath != null)
+                pq.save(new File(codebookPath));
+        }
+        pq.allocate(numWords);
+        return pq;
+    }
+    
+    static public Vocabulary getVocabulary() { return vocab; }
+    
+    static public boolean isUnitNorm() { return unitNorm; }
+    
+    static public VecCache<String, WordVec> getCache() { return cache; }
+    
+    // The clustering of the vocabulary (with the centroids), null if not clustered
+    static public ClusterMap getClusterMap() { return clusterMap; }
+    
+    // The fingerprint of the clustering of the vocabulary ("none" if not clustered)
+    static public String getClusterFingerprint() {
+        return clusterMap != null? String.valueOf(clusterMap.getFingerprint()) : "none";
+    }
+    
+    // The HNSW graph over the vocabulary, loaded from wvecs.hnsw.path if
+    // it's there or else built (and saved there)
+    static public synchronized HNSWIndex getKnnIndex() throws Exception {
+        if (knnIndex != null)
+            return knnIndex;
+        if (vocab == null)
+            throw new IllegalStateException("k-NN lookups need the vocabulary in memory (wvecs.lazy=false)");
+        
+        String path = prop.getProperty("wvecs.hnsw.path");
+        if (path != null && new File(path).exists()) {
+            knnIndex = HNSWIndex.load(new File(path), vocab);
+            if (knnIndex != null)
+                return knnIndex;
+            System.out.println("Ignoring HNSW index " + path + " built over a different vocabulary");
         }
         
+        int m = Integer.parseInt(prop.getProperty("wvecs.hnsw.m", "16"));
+        int efConstruction = Integer.parseInt(prop.getProperty("wvecs.hnsw.efconstruction", "200"));
+        int numThreads = Integer.parseInt(prop.getProperty("wvecs.hnsw.threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        System.out.println("Building HNSW index (M=" + m + ", efConstruction=" + efConstruction + ")...");
+        HNSWIndex index = new HNSWIndex(vocab, m, efConstruction);
+        index.build(numThreads);
+        if (path != null)
+            index.save(new File(path));
+        knnIndex = index;
+        return knnIndex;
+    }
+    
+    // The k nearest words of a word (excluding itself), with their
+    // similarities in querySim, in decreasing order of similarity
+    static public List<WordVec> nearest(String word, int k) throws Exception {
+        WordVec wv = getVecCached(word);
+        if (wv == null)
+            return new ArrayList<>();
+        int efSearch = Integer.parseInt(prop.getProperty("wvecs.hnsw.efsearch", "100"));
+        List<WordVec> nns = nearest(wv, k+1, efSearch);
+        for (int i = 0; i < nns.size(); i++) {
+            if (nns.get(i).getWord().equals(word)) {
+                nns.remove(i);
+                break;
+            }
+        }
+        return nns.size() > k? nns.subList(0, k) : nns;
+    }
+    
+    // The k nearest words of a vector (as returned by getVecCached, i.e.
+    // in the space of the vocabulary vectors)
+    static public List<WordVec> nearest(WordVec wv, int k, int efSearch) throws Exception {
+        HNSWIndex index = getKnnIndex();
+        float[] q = new float[wv.getDimension()];
+        for (int i = 0; i < q.length; i++)
+            q[i] = wv.raw(i);
+        int[] ids = new int[k];
+        float[] sims = new float[k];
+        int num = index.search(q, k, efSearch, ids, sims);
+        
+        List<WordVec> nns = new ArrayList<>(num);
+        for (int i = 0; i < num; i++) {
+            WordVec nn = vocab.getVec(ids[i]);
+            nn.querySim = sims[i];
+            nns.add(nn);
+        }
+        return nns;
     }
     
     static public void close() throws Exception {
-        reader.close();
+        knnIndex = null;
+        if (cache != null)
+            System.out.println("Word vector cache: " + cache);
+        if (store != null)
+            store.close();
+        if (reader != null)
+            reader.close();
+        if (clusterMap != null)
+            clusterMap.close();
+        clusterMap = null;
     }
 
     static Query getLuceneQueryObject(String word) {
@@ -99,11 +385,106 @@ public class WordVecs {
         return q;
     }
     
+    // The vector (normalized as in the vocabulary) from the vocabulary, or
+    // from the cache in lazy mode
     static public WordVec getVecCached(String word) throws Exception {
-        return wvecMap.get(word);
+        if (vocab != null)
+            return vocab.getVec(word);
+        
+        WordVec wv = cachedLookup(word);
+        if (wv == null)
+            return null;
+        wv = wv.copy();
+        wv.normalize();
+        if (unitNorm)
+            wv.toUnit();
+        return wv;
+    }
+    
+    // The id of a word in the vocabulary (its row in the store, or its doc id
+    // in the wvecs index), -1 if it has no vector
+    static public int getWordId(String word) throws Exception {
+        if (vocab != null)
+            return vocab.getId(word);
+        if (store != null)
+            return store.getId(word);
+        TopDocs topDocs = searcher.search(getLuceneQueryObject(word), 1);
+        return topDocs.scoreDocs.length == 0? -1 : topDocs.scoreDocs[0].doc;
+    }
+    
+    static public String getWord(int wordId) throws Exception {
+        if (vocab != null)
+            return vocab.getWord(wordId);
+        if (store != null)
+            return store.getWord(wordId);
+        return reader.document(wordId).get(WordVecsIndexer.FIELD_WORD_NAME);
     }
     
+    static public int getVocabSize() {
+        return vocab != null? vocab.size() : store != null? store.size() : reader.numDocs();
+    }
+    
+    // Hash of the first numWords words of the vocabulary, i.e. of the
+    // mapping of the word ids to the words (see ClusterMap.hashWords)
+    static public long getVocabHash(int numWords) throws Exception {
+        if (vocab != null)
+            return ClusterMap.hashWords(vocab, numWords);
+        List<String> words = new ArrayList<>(numWords);
+        for (int i = 0; i < numWords; i++)
+            words.add(getWord(i));
+        return ClusterMap.hashWords(words);
+    }
+    
+    // getVecCached by word id
+    static public WordVec getVecCached(int wordId) throws Exception {
+        return vocab != null? vocab.getVec(wordId) : getVecCached(getWord(wordId));
+    }
+    
+    // The vector as stored (a copy, since the callers may modify it)
     static public WordVec getVec(String word) throws Exception {
+        if (cache == null)
+            return lookupVec(word);
+        WordVec wv = cachedLookup(word);
+        return wv == null? null : wv.copy();
+    }
+    
+    static WordVec cachedLookup(String word) throws Exception {
+        WordVec wv = cache != null? cache.get(word) : null;
+        if (wv == null) {
+            wv = lookupVec(word);
+            if (wv == null)
+                wv = NO_VEC;
+            else if (vocab == null)
+                wv.setClusterId(lookupClusterId(word, wv));
+            if (cache != null)
+                wv = cache.putIfAbsent(word, wv);
+        }
+        return wv == NO_VEC? null : wv;
+    }
+    
+    // The cluster id of a word with the (stored) vector wv; a word added
+    // after the clustering goes to its nearest cluster
+    static int lookupClusterId(String word, WordVec wv) throws Exception {
+        if (clusterMap == null)
+            return -1;
+        int wordId;
+        if (store != null)
+            wordId = store.getId(word);
+        else {
+            TopDocs topDocs = searcher.search(getLuceneQueryObject(word), 1);
+            if (topDocs.scoreDocs.length == 0)
+                return -1;
+            wordId = topDocs.scoreDocs[0].doc;
+        }
+        if (wordId < 0)
+            return -1;
+        return wordId < clusterMap.size()? clusterMap.getClusterId(wordId) : clusterMap.assignNearest(wv);
+    }
+    
+    static WordVec lookupVec(String word) throws Exception {
+        if (store != null)
+            return store.getVec(word);
+        
         TopScoreDocCollector collector;
         TopDocs topDocs;
         collector = TopScoreDocCollector.create(1, true);
@@ -139,24 +520,57 @@ public class WordVecs {
     static public WordVec getCentroid(List<WordVec> wvecs) {
         int numVecs = wvecs.size(), j, dimension = wvecs.get(0).getDimension();
         WordVec centroid = new WordVec(dimension);
+        float[] c = centroid.vec;
         for (WordVec wv : wvecs) {
-            for (j = 0; j < dimension; j++) {
-                centroid.vec[j] += wv.vec[j];
+            // add up the original vectors (unit vectors scaled back by their norms)
+            float scale = wv.unit? wv.norm : 1;
+            if (wv.enc != null) {
+                // accumulate the quantized vectors in float
+                wv.enc.addTo(wv.row, c, 0, scale);
+                continue;
             }
+            VecMath.axpy(scale, wv.vec, wv.offset, c, 0, dimension);
         }
         for (j = 0; j < dimension; j++) {
-            centroid.vec[j] /= (double)numVecs;
+            c[j] /= (double)numVecs;
         }
         
+        // compute the norm once here rather than lazily for every comparison
+        centroid.getNorm();
+        if (unitNorm)
+            centroid.toUnit();
         return centroid;
     }
     
     static public int getClusterId(String word) throws Exception {
-        if (!clusterMap.containsKey(word))
-            return -1;
-        return clusterMap.get(word);
+        return getClusterId(word, numVocabClusters);
+    }
+    
+    // The cluster id of the word in the clustering into numClusters clusters,
+    // which, if the vocabulary is clustered hierarchically, is any number up
+    // to the number of clusters built (see ClusterMap)
+    static public int getClusterId(String word, int numClusters) throws Exception {
+        int clusterId;
+        if (vocab == null) {
+            WordVec wv = cachedLookup(word);
+            clusterId = wv == null? -1 : wv.getClusterId();
+        }
+        else {
+            int wordId = vocab.getId(word);
+            clusterId = wordId < 0? -1 : vocab.getClusterId(wordId);
+        }
+        return clusterMap == null? clusterId : clusterMap.toCut(clusterId, numClusters);
     }    
     
+    // getClusterId by word id
+    static public int getClusterId(int wordId, int numClusters) throws Exception {
+        if (vocab != null)
+            return clusterMap == null? vocab.getClusterId(wordId) : clusterMap.toCut(vocab.getClusterId(wordId), numClusters);
+        if (clusterMap != null && wordId < clusterMap.size())
+            return clusterMap.getClusterId(wordId, numClusters);
+        return getClusterId(getWord(wordId), numClusters);
+    }
+    
     public static void main(String[] args) {
         try {
             WordVecs.init("init.properties");
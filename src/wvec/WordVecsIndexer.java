@@ -11,7 +11,10 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import org.apache.commons.math3.ml.clustering.CentroidCluster;
 import org.apache.commons.math3.ml.clustering.Clusterable;
@@ -37,20 +40,12 @@ import org.apache.lucene.util.packed.DirectReader;
 class CosineDistance implements DistanceMeasure {
 
     double norm(double[] vec) {
-        // calculate and store
-        double sum = 0;
-        for (int i = 0; i < vec.length; i++) {
-            sum += vec[i]*vec[i];
-        }
-        return Math.sqrt(sum);
+        return Math.sqrt(VecMath.dot(vec, vec));
     }
     
     @Override
     public double compute(double[] a, double[] b) throws DimensionMismatchException {
-        double sum = 0;
-        for (int i = 0; i < a.length; i++) {
-            sum += a[i]*b[i];
-        }
+        double sum = VecMath.dot(a, b);
 		double cosineSim = sum/(norm(a)*norm(b));
         return Math.acos(cosineSim); // return cos inverse 
     }    
@@ -60,6 +55,7 @@ public class WordVecsIndexer {
     IndexWriter writer;
     Properties prop;
     String indexPath;
+    String storePath;
     
     static final public String FIELD_WORD_NAME = "wordname";
     static final public String FIELD_WORD_VEC = "wordvec";
@@ -68,20 +64,34 @@ public class WordVecsIndexer {
         prop = new Properties();
         prop.load(new FileReader(propFile));                
         indexPath = prop.getProperty("wvecs.index");        
+        storePath = prop.getProperty("wvecs.store");
     }
 
     public void writeIndex() throws Exception {
         
-        IndexWriterConfig iwcfg = new IndexWriterConfig(
-                Version.LUCENE_4_9,
-                new WhitespaceAnalyzer(Version.LUCENE_4_9));
-        iwcfg.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
-
-        writer = new IndexWriter(FSDirectory.open(new File(indexPath)), iwcfg);        
-        
         String fileToRead = prop.getProperty("wvecs.txt");
-        indexFile(new File(fileToRead));
-        writer.close();
+        boolean binary = WordVecImporter.isBinary(prop.getProperty("wvecs.format", "auto"), new File(fileToRead));
+        if (binary && storePath == null)
+            throw new Exception("A binary word2vec file can only be imported with wvecs.store set");
+        if (storePath != null)
+            importVecs(new File(fileToRead));
+        
+        // The Lucene index is still written for the lookups without the
+        // store, unless wvecs.index isn't set
+        if (indexPath != null) {
+            IndexWriterConfig iwcfg = new IndexWriterConfig(
+                    Version.LUCENE_4_9,
+                    new WhitespaceAnalyzer(Version.LUCENE_4_9));
+            iwcfg.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+
+            writer = new IndexWriter(FSDirectory.open(new File(indexPath)), iwcfg);        
+
+            if (binary)
+                indexStore();
+            else
+                indexFile(new File(fileToRead));
+            writer.close();
+        }
         
         storeClusterInfo();
     }
@@ -94,65 +104,230 @@ public class WordVecsIndexer {
         return doc;        
     }
 
+    // The cluster ids (aligned with the word ids) and the centroids are
+    // written to the binary file <basedir>/<k>.cids (see ClusterMap), which
+    // appears only once complete. Checkpoints of the clustering go in
+    // <basedir>/<k>.ckpt and are removed once the cluster ids are in place.
+    // If words have been appended to the vocabulary since the clustering,
+    // they're just assigned to their nearest clusters (see updateClusterInfo).
     void storeClusterInfo() throws Exception {
         int numClusters = Integer.parseInt(prop.getProperty("wvecs.numclusters", "5"));        
         String clusterInfoBaseDir = prop.getProperty("wvecs.clusterids.basedir");
-        String clusterInfoDirPath = clusterInfoBaseDir + "/" + numClusters;
-        
-        File clusterInfoFile = new File(clusterInfoDirPath);
-        if (clusterInfoFile.isDirectory() && clusterInfoFile.exists()) {
-            System.out.println("Cluster info already exists...");
+        File clusterInfoFile = new File(clusterInfoBaseDir + "/" + numClusters + ".cids");
+        if (clusterInfoFile.exists() && updateClusterInfo(clusterInfoFile))
             return;
-        }
 
         // Create the directory...
-        clusterInfoFile.mkdir();
-        IndexWriterConfig iwcfg = new IndexWriterConfig(
-                Version.LUCENE_4_9,
-                new WhitespaceAnalyzer(Version.LUCENE_4_9));
-        iwcfg.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
-
-        IndexWriter clusterInfoFileWriter = new IndexWriter(FSDirectory.open(clusterInfoFile), iwcfg);        
-        clusterWordVecs(clusterInfoFileWriter, numClusters);
-        clusterInfoFileWriter.close();        
+        new File(clusterInfoBaseDir).mkdirs();
+        File checkpointFile = new File(clusterInfoBaseDir + "/" + numClusters + ".ckpt");
+        clusterWordVecs(clusterInfoFile, numClusters, checkpointFile);
+        checkpointFile.delete();
     }
     
-    void clusterWordVecs(IndexWriter clusterIndexWriter, int numClusters) throws Exception {
-        // Index where word vectors are stored
-        IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(indexPath)));
-        int numDocs = reader.numDocs();
+    // Brings the cluster ids up to date with the vocabulary without
+    // reclustering, if the words clustered are a prefix of the vocabulary:
+    // the new words go to the clusters with the most similar centroids, and
+    // with wvecs.clustering.update.refine the centroids are moved towards
+    // them (online k-means). Returns false if a reclustering is needed.
+    boolean updateClusterInfo(File clusterInfoFile) throws Exception {
+        List<WordVec> wordList = loadWordVecs();
+        int numWords = wordList.size();
+        List<String> words = new ArrayList<>(numWords);
+        for (WordVec wv : wordList)
+            words.add(wv.word);
+        
+        ClusterMap clusterMap = new ClusterMap(clusterInfoFile);
+        int k = clusterMap.getNumClusters(), dimension = clusterMap.getDimension();
+        int[] labels, parents = clusterMap.getParents();
+        float[] centroids;
+        try {
+            int numClustered = clusterMap.size();
+            if (numClustered > numWords || clusterMap.getDimension() != wordList.get(0).getDimension()
+                    || clusterMap.getVocabHash() != ClusterMap.hashWords(words.subList(0, numClustered))) {
+                System.out.println("Cluster info in " + clusterInfoFile.getPath() + " is of a different vocabulary, reclustering...");
+                return false;
+            }
+            if (numClustered == numWords) {
+                System.out.println("Cluster info already exists...");
+                return true;
+            }
+            
+            long start = System.currentTimeMillis();
+            labels = new int[numWords];
+            for (int i = 0; i < numClustered; i++)
+                labels[i] = clusterMap.getClusterId(i);
+            List<WordVec> newWords = wordList.subList(numClustered, numWords);
+            int[] newLabels = clusterMap.assignNearest(newWords);
+            System.arraycopy(newLabels, 0, labels, numClustered, newLabels.length);
+            
+            centroids = clusterMap.getCentroids();
+            if (Boolean.parseBoolean(prop.getProperty("wvecs.clustering.update.refine", "false"))) {
+                int[] counts = new int[k];
+                for (int i = 0; i < numClustered; i++) {
+                    if (labels[i] >= 0)
+                        counts[labels[i]]++;
+                }
+                float[] x = new float[dimension];
+                for (int i = 0; i < newWords.size(); i++) {
+                    // c += (x - c)/n on the unit vectors, keeping c of unit length
+                    int c = newLabels[i], base = c*dimension;
+                    System.arraycopy(newWords.get(i).vec, 0, x, 0, dimension);
+                    SphericalKMeans.normalize(x, 0, dimension);
+                    SphericalKMeans.normalize(centroids, base, dimension);
+                    float eta = 1.0f/(++counts[c]);
+                    for (int j = 0; j < dimension; j++)
+                        centroids[base + j] += eta*(x[j] - centroids[base + j]);
+                    SphericalKMeans.normalize(centroids, base, dimension);
+                }
+            }
+            
+            System.out.println(String.format("Assigned %d new words to their nearest clusters in %d ms",
+                    newWords.size(), System.currentTimeMillis() - start));
+        }
+        finally {
+            clusterMap.close();
+        }
+        writeClusterInfo(clusterInfoFile, wordList, labels, centroids, parents, k);
+        return true;
+    }
+    
+    void clusterWordVecs(File clusterInfoFile, int numClusters, File checkpointFile) throws Exception {
+        String method = prop.getProperty("wvecs.clustering", "spherical");
+        if (method.equals("bisecting")) {
+            bisectingClusterWordVecs(clusterInfoFile, numClusters, checkpointFile);
+            return;
+        }
+        if (!method.equals("kmeans++")) {
+            sphericalClusterWordVecs(clusterInfoFile, numClusters, checkpointFile);
+            return;
+        }
+        
 		//+++DG: Cluster on cosine distances, i.e. the angles between the vecs
         //KMeansPlusPlusClusterer<WordVec> clusterer = new KMeansPlusPlusClusterer<>(numClusters); 
         DistanceMeasure angleMeasure = new CosineDistance();
         KMeansPlusPlusClusterer<WordVec> clusterer = new KMeansPlusPlusClusterer<>(numClusters, 500, angleMeasure);
 		//---DG:
-        List<WordVec> wordList = new ArrayList<>(numDocs);
-        
-        // Read every wvec and load in memory
-        for (int i = 0; i < numDocs; i++) {
-			System.out.println("Reading doc " + i);
-            Document doc = reader.document(i);
-            WordVec wvec = new WordVec(doc.get(FIELD_WORD_VEC));
-            wordList.add(wvec);            
-        }
+        List<WordVec> wordList = loadWordVecs();
+        int dimension = wordList.get(0).getDimension();
         
         // Call K-means clustering
         System.out.println("Clustering the entire vocabulary...");
         List<CentroidCluster<WordVec>> clusters = clusterer.cluster(wordList);        
         
-        // Save the cluster info
-        System.out.println("Writing out cluster ids in Lucene index...");
+        // the points come back as the same objects, so map them to their ids
+        Map<WordVec, Integer> wordIds = new IdentityHashMap<>();
+        for (int i = 0; i < wordList.size(); i++)
+            wordIds.put(wordList.get(i), i);
+        
+        int[] labels = new int[wordList.size()];
+        Arrays.fill(labels, -1);
+        float[] centroids = new float[clusters.size()*dimension];
         int clusterId = 0;
         for (CentroidCluster<WordVec> c : clusters) {
             List<WordVec> pointsInThisClusuter = c.getPoints();
             for (WordVec thisPoint: pointsInThisClusuter) {
-                Document clusterInfo = constructDoc(thisPoint.word, String.valueOf(clusterId));
-                clusterIndexWriter.addDocument(clusterInfo);
+                labels[wordIds.get(thisPoint)] = clusterId;
             }
+            double[] center = c.getCenter().getPoint();
+            for (int j = 0; j < dimension; j++)
+                centroids[clusterId*dimension + j] = (float)center[j];
             clusterId++;
         }
+        writeClusterInfo(clusterInfoFile, wordList, labels, centroids, clusters.size());
+    }
+    
+    // Spherical k-means (on the unit vectors) in parallel
+    void sphericalClusterWordVecs(File clusterInfoFile, int numClusters, File checkpointFile) throws Exception {
+        List<WordVec> wordList = loadWordVecs();
+        int numWords = wordList.size(), dimension = wordList.get(0).getDimension();
+        float[] points = new float[numWords*dimension];
+        for (int i = 0; i < numWords; i++)
+            System.arraycopy(wordList.get(i).vec, 0, points, i*dimension, dimension);
+        
+        int numThreads = Integer.parseInt(prop.getProperty("wvecs.clustering.threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        SphericalKMeans kmeans = new SphericalKMeans(points, numWords, dimension, numClusters, numThreads,
+                Long.parseLong(prop.getProperty("wvecs.clustering.seed", "123456")));
+        kmeans.setMaxIterations(Integer.parseInt(prop.getProperty("wvecs.clustering.iterations", "100")));
+        kmeans.setTolerance(Float.parseFloat(prop.getProperty("wvecs.clustering.tolerance", "0.001")));
+        if (prop.getProperty("wvecs.clustering.mode", "batch").equals("minibatch"))
+            kmeans.setBatchSize(Integer.parseInt(prop.getProperty("wvecs.clustering.batchsize", "10000")));
+        kmeans.setCheckpoint(checkpointFile, Integer.parseInt(prop.getProperty("wvecs.clustering.checkpoint.every", "5")));
+        
+        System.out.println("Clustering the entire vocabulary...");
+        int[] labels = kmeans.cluster();
+        writeClusterInfo(clusterInfoFile, wordList, labels, kmeans.getCentroids(), kmeans.getNumClusters());
+    }
+    
+    // Hierarchical (bisecting) spherical k-means, saved with the parents of
+    // the clusters so that any number of clusters up to numClusters can be used
+    void bisectingClusterWordVecs(File clusterInfoFile, int numClusters, File checkpointFile) throws Exception {
+        List<WordVec> wordList = loadWordVecs();
+        int numWords = wordList.size(), dimension = wordList.get(0).getDimension();
+        float[] points = new float[numWords*dimension];
+        for (int i = 0; i < numWords; i++)
+            System.arraycopy(wordList.get(i).vec, 0, points, i*dimension, dimension);
+        
+        int numThreads = Integer.parseInt(prop.getProperty("wvecs.clustering.threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        BisectingKMeans kmeans = new BisectingKMeans(points, numWords, dimension, numClusters, numThreads,
+                Long.parseLong(prop.getProperty("wvecs.clustering.seed", "123456")));
+        kmeans.setMaxIterations(Integer.parseInt(prop.getProperty("wvecs.clustering.iterations", "100")));
+        kmeans.setTolerance(Float.parseFloat(prop.getProperty("wvecs.clustering.tolerance", "0.001")));
+        kmeans.setCheckpoint(checkpointFile, Integer.parseInt(prop.getProperty("wvecs.clustering.checkpoint.every", "5")));
+        
+        System.out.println("Clustering the entire vocabulary hierarchically...");
+        int[] labels = kmeans.cluster();
+        System.out.println(String.format("Mean similarity with the centroids: %.6f", kmeans.getMeanSim()));
+        writeClusterInfo(clusterInfoFile, wordList, labels, kmeans.getCentroids(), kmeans.getParents(),
+                kmeans.getNumClusters());
+    }
+    
+    void writeClusterInfo(File clusterInfoFile, List<WordVec> wordList, int[] labels,
+            float[] centroids, int numClusters) throws Exception {
+        writeClusterInfo(clusterInfoFile, wordList, labels, centroids, null, numClusters);
+    }
+    
+    void writeClusterInfo(File clusterInfoFile, List<WordVec> wordList, int[] labels,
+            float[] centroids, int[] parents, int numClusters) throws Exception {
+        System.out.println("Writing out cluster ids in " + clusterInfoFile.getPath());
+        List<String> words = new ArrayList<>(wordList.size());
+        for (WordVec wv : wordList)
+            words.add(wv.word);
+        ClusterMap.write(clusterInfoFile, labels, centroids, parents, numClusters,
+                wordList.get(0).getDimension(), ClusterMap.hashWords(words));
+    }
+    
+    List<WordVec> loadWordVecs() throws Exception {
+        List<WordVec> wordList;
+        if (storePath != null) {
+            // Read the vectors straight out of the binary store
+            WordVecStore store = new WordVecStore(new File(storePath));
+            int numWords = store.size();
+            wordList = new ArrayList<>(numWords);
+            for (int i = 0; i < numWords; i++) {
+                float[] vec = new float[store.getDimension()];
+                store.getVec(i, vec, 0);
+                wordList.add(new WordVec(store.getWord(i), vec));
+            }
+            store.close();
+            return wordList;
+        }
+        
+        // Index where word vectors are stored
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(indexPath)));
+        int numDocs = reader.numDocs();
+        wordList = new ArrayList<>(numDocs);
         
+        // Read every wvec and load in memory
+        for (int i = 0; i < numDocs; i++) {
+			System.out.println("Reading doc " + i);
+            Document doc = reader.document(i);
+            WordVec wvec = new WordVec(doc.get(FIELD_WORD_VEC));
+            wordList.add(wvec);            
+        }
         reader.close();
+        return wordList;
     }
     
     void indexFile(File file) throws Exception {
@@ -181,6 +356,40 @@ public class WordVecsIndexer {
         fr.close();
     }
     
+    // Index the vectors imported into the store (from a binary word2vec
+    // file) as the lines of the text format
+    void indexStore() throws Exception {
+        WordVecStore store = new WordVecStore(new File(storePath));
+        int numWords = store.size();
+        float[] vec = new float[store.getDimension()];
+        StringBuilder line = new StringBuilder();
+        
+        final int batchSize = 10000;
+        for (int i = 0; i < numWords; i++) {
+            String id = store.getWord(i);
+            store.getVec(i, vec, 0);
+            line.setLength(0);
+            line.append(id);
+            for (float x : vec)
+                line.append(" ").append(x);
+            
+            if (i%batchSize == 0) {
+                System.out.println("Added " + i + " words...");
+            }
+            writer.addDocument(constructDoc(id, line.toString()));
+        }
+        store.close();
+    }
+    
+    // Parallel import of the word2vec text (or binary) file into the store
+    void importVecs(File file) throws Exception {
+        boolean binary = WordVecImporter.isBinary(prop.getProperty("wvecs.format", "auto"), file);
+        int numThreads = Integer.parseInt(prop.getProperty("wvecs.import.threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        WordVecImporter importer = new WordVecImporter(file, new File(storePath), binary, numThreads);
+        importer.importFile();
+    }
+    
     /* Use this to index the output of word2vec, i.e. instead
        of loading the word vectors from an in-memory hashmap
        keyed by a word, use Lucene search to retrieve the vector